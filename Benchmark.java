@@ -0,0 +1,320 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+// A small benchmark harness in the spirit of JMH that needs nothing but
+// javac; the jmh/ module runs the same phases under JMH itself. Every
+// phase is run over every corpus: a few warmup iterations, then measured
+// iterations of about --time ms each. One operation is one pass over the
+// whole corpus. Reports operations, tokens and bytes per second, and the
+// bytes allocated per operation as counted by the JVM for the benchmark
+// thread (what JMH's GC profiler reports as gc.alloc.rate.norm).
+//
+// Usage: java Benchmark [--phase lex,parse,write,vm] [--corpus Square,...]
+//                       [--warmup n] [--iterations n] [--time ms]
+//        java Benchmark --scale <shape> [steps]
+//
+// Corpora are the bundled program directories, 11 (all of 11/), and
+// synthetic-<shape> for a class from JackGenerator (synthetic alone is
+// synthetic-balanced).
+public class Benchmark {
+
+    // The bundled programs, by directory; 11 is every program under 11/
+    private static final String[] corpusNames = {
+        "Square", "ExpressionLessSquare", "ArrayTest", "11", "synthetic"
+    };
+
+    // Where the checksums of measured operations go, so the JIT cannot
+    // drop the work that produced them (JMH's Blackhole does this there)
+    static long sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--scale")){
+            scale(
+                args.length > 1 ? args[1] : "balanced",
+                args.length > 2 ? Integer.parseInt(args[2]) : 5
+            );
+            return;
+        }
+
+        List<Phase> phases = new ArrayList<Phase>(Arrays.asList(Phase.values()));
+        List<String> corpora = new ArrayList<String>(Arrays.asList(corpusNames));
+        int warmup = 3;
+        int iterations = 5;
+        long time = 500;
+        for (int i = 0; i + 1 < args.length; i += 2){
+            switch (args[i]){
+                case "--phase":
+                    phases.clear();
+                    for (String name : args[i + 1].split(",")){
+                        phases.add(Phase.valueOf(name.toUpperCase()));
+                    }
+                    break;
+                case "--corpus":
+                    corpora = Arrays.asList(args[i + 1].split(","));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--time":
+                    time = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+
+        System.out.printf("%-6s %-21s %12s %10s %12s %9s %12s%n",
+            "phase", "corpus", "ops/s", "+-sd", "tokens/s", "MB/s", "B/op");
+        for (String name : corpora){
+            Corpus corpus = Corpus.load(name);
+            for (Phase phase : phases){
+                measure(phase, corpus, warmup, iterations, time * 1000000);
+            }
+        }
+    }
+
+    // For the JMH module in jmh/: its classes are in a package and cannot
+    // name Corpus or Phase, so it calls these by method handle instead
+    public static Object loadCorpus(String name) throws IOException {
+        return Corpus.load(name);
+    }
+
+    // One pass of phase over corpus, as returned by loadCorpus; returns a
+    // checksum of what the pass produced, to be sunk by the caller
+    public static LongSupplier operation(String phase, Object corpus){
+        Phase selected = Phase.valueOf(phase.toUpperCase());
+        Corpus loaded = (Corpus) corpus;
+        return () -> {
+            try {
+                return run(selected, loaded);
+            } catch (IOException e){
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // {tokens, bytes} of one pass over corpus
+    public static long[] corpusSize(Object corpus){
+        Corpus loaded = (Corpus) corpus;
+        return new long[] { loaded.tokens, loaded.bytes };
+    }
+
+    private static void measure(Phase phase, Corpus corpus,
+            int warmup, int iterations, long time) throws IOException {
+        for (int i = 0; i < warmup; i++){
+            runFor(phase, corpus, time);
+        }
+
+        double[] rates = new double[iterations];
+        long operations = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++){
+            long allocatedBefore = CompileStats.allocatedBytes();
+            long start = System.nanoTime();
+            long count = runFor(phase, corpus, time);
+            long elapsed = System.nanoTime() - start;
+            allocated += CompileStats.allocatedBytes() - allocatedBefore;
+            operations += count;
+            rates[i] = count * 1e9 / elapsed;
+        }
+
+        double mean = 0;
+        for (double rate : rates){
+            mean += rate / iterations;
+        }
+        double variance = 0;
+        for (double rate : rates){
+            variance += (rate - mean) * (rate - mean) / Math.max(1, iterations - 1);
+        }
+        System.out.printf("%-6s %-21s %12.1f %10.1f %12.0f %9.2f %12d%n",
+            phase.toString(), corpus.name, mean, Math.sqrt(variance),
+            mean * corpus.tokens, mean * corpus.bytes / 1e6,
+            allocated / operations);
+    }
+
+    // Runs whole operations until time has passed; returns how many
+    private static long runFor(Phase phase, Corpus corpus, long time)
+            throws IOException {
+        long count = 0;
+        long start = System.nanoTime();
+        do {
+            sink += run(phase, corpus);
+            count++;
+        } while (System.nanoTime() - start < time);
+        return count;
+    }
+
+    // Returns a checksum of what the pass produced
+    private static long run(Phase phase, Corpus corpus) throws IOException {
+        long checksum = 0;
+        for (int i = 0; i < corpus.names.length; i++){
+            switch (phase){
+                case LEX:
+                    JackTokenizer tokenizer = JackTokenizer.fromSource(
+                        corpus.names[i], corpus.sources[i]
+                    );
+                    tokenizer.readFile();
+                    checksum += tokenizer.getTokens().size();
+                    break;
+                case PARSE:
+                    // Pre-lexed tokens, so only the parser is measured
+                    TokenCollector collector = new TokenCollector();
+                    new CompilationEngine(
+                        JackTokenizer.fromTokens(corpus.names[i], corpus.lexed.get(i)),
+                        collector, corpus.options.newTypeRegistry()
+                    );
+                    checksum += collector.getTokens().size();
+                    break;
+                case WRITE:
+                    // Written to a file, which is never optimized away
+                    JackAnalyzer.writeToFile(corpus.engines[i], corpus.outputPath);
+                    break;
+                case VM:
+                    checksum += JackAnalyzer.compileSource(
+                        corpus.names[i], corpus.sources[i], corpus.options
+                    ).length();
+                    break;
+            }
+        }
+        return checksum;
+    }
+
+    // Doubles a generated class of the given shape a few times and shows
+    // the cost per token of each phase; on a linear compiler the numbers
+    // stay flat as the input grows
+    private static void scale(String shape, int steps) throws IOException {
+        System.out.printf("%-9s %6s %9s %9s %9s %9s%n",
+            "shape", "scale", "tokens", "lex", "parse", "vm");
+        System.out.printf("%-9s %6s %9s %9s %9s %9s%n",
+            "", "", "", "ns/token", "ns/token", "ns/token");
+        Corpus[] corpora = new Corpus[steps];
+        for (int i = 0; i < steps; i++){
+            corpora[i] = Corpus.synthetic(shape, 1 << i);
+        }
+        Phase[] phases = { Phase.LEX, Phase.PARSE, Phase.VM };
+        long time = 300000000L;
+        // Warm the JIT up on the largest input first, so the small inputs
+        // are not measured while the compiler is still compiling
+        for (Phase phase : phases){
+            runFor(phase, corpora[steps - 1], 4 * time);
+        }
+        for (int step = 0; step < steps; step++){
+            Corpus corpus = corpora[step];
+            double[] costs = new double[3];
+            for (int i = 0; i < phases.length; i++){
+                runFor(phases[i], corpus, time / 3);
+                long start = System.nanoTime();
+                long count = runFor(phases[i], corpus, time);
+                costs[i] = (System.nanoTime() - start) / (double) (count * corpus.tokens);
+            }
+            System.out.printf("%-9s %6d %9d %9.1f %9.1f %9.1f%n",
+                shape, 1 << step, corpus.tokens, costs[0], costs[1], costs[2]);
+        }
+    }
+}
+
+// What a benchmark operation does to each file of a corpus
+enum Phase {
+    LEX,    // JackTokenizer.readFile
+    PARSE,  // CompilationEngine construction, from pre-lexed tokens
+    WRITE,  // JackAnalyzer.writeToFile, from a parsed engine
+    VM;     // Source to VM code, the whole default pipeline
+
+    @Override
+    public String toString(){
+        return name().toLowerCase();
+    }
+}
+
+// The files of one corpus, in every form the phases start from
+class Corpus {
+
+    String name;
+    String[] names;
+    String[] sources;
+    List<List<Token>> lexed = new ArrayList<List<Token>>();
+    CompilationEngine[] engines;
+    CompilerOptions options = new CompilerOptions();
+    String outputPath;
+    long tokens;
+    long bytes;
+
+    static Corpus load(String name) throws IOException {
+        if (name.startsWith("synthetic")){
+            return synthetic(
+                name.startsWith("synthetic-") ? name.substring(10) : "balanced", 1
+            );
+        }
+        Corpus corpus = new Corpus();
+        corpus.name = name;
+        List<File> files = JackAnalyzer.collectSources(
+            Arrays.asList(directories(name)), System.out
+        );
+        corpus.names = new String[files.size()];
+        corpus.sources = new String[files.size()];
+        for (int i = 0; i < files.size(); i++){
+            corpus.names[i] = files.get(i).getPath();
+            corpus.sources[i] = new String(Files.readAllBytes(files.get(i).toPath()));
+        }
+        corpus.prepare();
+        return corpus;
+    }
+
+    // One JackGenerator class of the given shape and scale
+    static Corpus synthetic(String shape, int scale) throws IOException {
+        Corpus corpus = new Corpus();
+        corpus.name = "synthetic-" + shape + (scale > 1 ? "x" + scale : "");
+        corpus.names = new String[] { "Synthetic" };
+        corpus.sources = new String[] {
+            JackGenerator.shape(shape, 42, scale).generate("Synthetic")
+        };
+        corpus.prepare();
+        return corpus;
+    }
+
+    // Lexes and parses every source once, for the phases that start later
+    private void prepare() throws IOException {
+        engines = new CompilationEngine[names.length];
+        for (int i = 0; i < names.length; i++){
+            options.addClassName(JackAnalyzer.className(new File(names[i])));
+        }
+        for (int i = 0; i < names.length; i++){
+            List<Token> fileTokens = JackTokenizer.fromSource(
+                names[i], sources[i]
+            ).getTokens();
+            lexed.add(fileTokens);
+            tokens += fileTokens.size();
+            bytes += sources[i].length();
+            engines[i] = new CompilationEngine(
+                JackTokenizer.fromTokens(names[i], fileTokens)
+            );
+        }
+        File output = File.createTempFile("benchmark", ".xml");
+        output.deleteOnExit();
+        outputPath = output.getPath();
+    }
+
+    // 11 stands for every program directory under 11/
+    private static String[] directories(String name){
+        if (!name.equals("11")){
+            return new String[] { name };
+        }
+        File[] programs = new File("11").listFiles(File::isDirectory);
+        Arrays.sort(programs);
+        String[] paths = new String[programs.length];
+        for (int i = 0; i < programs.length; i++){
+            paths[i] = programs[i].getPath();
+        }
+        return paths;
+    }
+}
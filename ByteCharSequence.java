@@ -0,0 +1,45 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Views a buffer of ASCII bytes as characters without copying them, so the
+// lexer can walk a byte[] or a memory-mapped file directly.
+class ByteCharSequence implements CharSequence {
+
+    private ByteBuffer bytes;
+
+    private ByteCharSequence(ByteBuffer bytes){
+        this.bytes = bytes;
+    }
+
+    // Pure ASCII input is wrapped as-is; anything else is decoded as UTF-8
+    public static CharSequence decode(ByteBuffer bytes){
+        int limit = bytes.limit();
+        for (int i = bytes.position(); i < limit; i++){
+            if (bytes.get(i) < 0){
+                return StandardCharsets.UTF_8.decode(bytes.duplicate());
+            }
+        }
+        return new ByteCharSequence(bytes.slice());
+    }
+
+    public int length(){
+        return bytes.limit();
+    }
+
+    public char charAt(int index){
+        return (char) bytes.get(index);
+    }
+
+    public CharSequence subSequence(int start, int end){
+        ByteBuffer slice = bytes.duplicate();
+        slice.position(start);
+        slice.limit(end);
+        return new ByteCharSequence(slice.slice());
+    }
+
+    public String toString(){
+        byte[] copy = new byte[bytes.limit()];
+        bytes.duplicate().get(copy);
+        return new String(copy, StandardCharsets.US_ASCII);
+    }
+}
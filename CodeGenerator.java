@@ -0,0 +1,728 @@
+// Compiles a class to Hack VM code while CompilationEngine parses it. Each
+// open non-terminal gets a Frame holding what is known about it so far;
+// code is written as soon as the events that decide it have arrived, so
+// the class never exists as a tree or as XML.
+//
+// Constant terms are not pushed straight away. They wait in their frame
+// so that operators between constants can be folded at compile time, and
+// are only written once a term that needs code arrives.
+public class CodeGenerator implements ParseListener {
+
+    // Longest add chain written for a multiplication by a constant; above
+    // this Math.multiply is called instead
+    private static final int MAX_MULTIPLY_CHAIN = 32;
+
+    private VMWriter vm;
+    private SymbolTable symbols = new SymbolTable();
+
+    private String className;
+    private String subroutineName;
+    private KeywordType subroutineKind;
+    private int labelCount;
+
+    // Frames are reused between non-terminals at the same depth
+    private Frame[] frames = new Frame[32];
+    private int depth;
+    // Frames below depth that hold a constant not yet written
+    private int pendingConstants;
+
+    public CodeGenerator(VMWriter vm){
+        this.vm = vm;
+    }
+
+    public void startNonTerminal(NonTerminal nonTerminal){
+        Frame parent = depth > 0 ? frames[depth - 1] : null;
+        if (parent != null){
+            parent.children++;
+        }
+        Frame frame = push(nonTerminal);
+
+        switch (nonTerminal){
+            case ifStatement:
+            case whileStatement:
+                frame.label = labelCount++;
+                break;
+
+            case statements:
+                // The body's statements follow its varDecs, so the number
+                // of locals is known by now
+                if (parent.kind == NonTerminal.subroutineBody){
+                    writeFunction();
+                }
+                break;
+
+            case expression:
+                if (parent.kind == NonTerminal.returnStatement){
+                    parent.hasValue = true;
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    public void endNonTerminal(NonTerminal nonTerminal){
+        Frame frame = frames[--depth];
+        Frame parent = depth > 0 ? frames[depth - 1] : null;
+
+        switch (nonTerminal){
+            case term:
+                // A lone identifier turns out to be a plain variable
+                if (frame.pendingName != null){
+                    pushVariable(
+                        frame.pendingId, frame.pendingName, frame.pendingOffset
+                    );
+                }
+                if (frame.op != 0){
+                    if (frame.constant){
+                        frame.value = frame.op == '-' ?
+                            (short) -frame.value : (short) ~frame.value;
+                    } else {
+                        vm.writeArithmetic(
+                            frame.op == '-' ? Command.NEG : Command.NOT
+                        );
+                    }
+                }
+                if (parent.kind == NonTerminal.expression){
+                    endOperand(parent, frame);
+                } else if (frame.constant){
+                    // The operand of a unary term
+                    parent.constant = true;
+                    parent.value = frame.value;
+                }
+                break;
+
+            case expression:
+                if (frame.constant){
+                    if (parent.kind == NonTerminal.term && parent.grouped){
+                        // ( expression ) stays a constant term
+                        parent.constant = true;
+                        parent.value = frame.value;
+                    } else {
+                        pendingConstants--;
+                        flushConstants();
+                        pushConstant(frame.value);
+                    }
+                }
+                if (parent.kind == NonTerminal.expressionList){
+                    // The call the list belongs to is one frame further out
+                    frames[depth - 2].nArgs++;
+                }
+                break;
+
+            case letStatement:
+                if (frame.array){
+                    vm.writePop(Segment.TEMP, 0);
+                    vm.writePop(Segment.POINTER, 1);
+                    vm.writePush(Segment.TEMP, 0);
+                    vm.writePop(Segment.THAT, 0);
+                } else {
+                    VarKind kind = lookup(
+                        frame.targetId, frame.targetName, frame.targetOffset
+                    );
+                    vm.writePop(kind.getSegment(), symbols.indexOf(frame.targetId));
+                }
+                break;
+
+            case whileStatement:
+                vm.writeGoto("WHILE_EXP" + frame.label);
+                vm.writeLabel("WHILE_END" + frame.label);
+                break;
+
+            case ifStatement:
+                vm.writeLabel("IF_END" + frame.label);
+                break;
+
+            case doStatement:
+                vm.writePop(Segment.TEMP, 0);
+                break;
+
+            case returnStatement:
+                if (!frame.hasValue){
+                    vm.writePush(Segment.CONSTANT, 0);
+                }
+                vm.writeReturn();
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    // The output is only ever thrown away after an error, but restarting
+    // lets the rest of the class be checked for undefined variables
+    public boolean restart(int depth){
+        this.depth = depth;
+        // Constants only wait in expressions and terms, which are all gone
+        pendingConstants = 0;
+        return true;
+    }
+
+    public void terminal(TokenBuffer tokens, int index){
+        Frame frame = frames[depth - 1];
+        int child = frame.children++;
+        TokenType type = tokens.getTokenType(index);
+
+        switch (frame.kind){
+            case CLASS:
+                if (child == 1){
+                    className = tokens.getText(index);
+                    symbols.startClass();
+                    labelCount = 0;
+                }
+                break;
+
+            case classVarDec:
+            case varDec:
+            case parameterList:
+                declare(frame, tokens, index, child);
+                break;
+
+            case subroutineDec:
+                if (child == 0){
+                    subroutineKind = tokens.getKeyword(index);
+                    symbols.startSubroutine();
+                    if (subroutineKind == KeywordType.METHOD){
+                        // argument 0 is the object itself
+                        symbols.reserve(VarKind.ARG);
+                    }
+                } else if (child == 2){
+                    subroutineName = tokens.getText(index);
+                }
+                break;
+
+            case letStatement:
+                if (child == 1){
+                    frame.targetId = tokens.getId(index);
+                    frame.targetName = tokens.getText(index);
+                    frame.targetOffset = tokens.getOffset(index);
+                } else if (tokens.isSymbol(index, '[')){
+                    pushVariable(
+                        frame.targetId, frame.targetName, frame.targetOffset
+                    );
+                    frame.array = true;
+                } else if (tokens.isSymbol(index, ']')){
+                    vm.writeArithmetic(Command.ADD);
+                }
+                break;
+
+            case ifStatement:
+                if (tokens.isSymbol(index, ')')){
+                    vm.writeArithmetic(Command.NOT);
+                    vm.writeIf("IF_FALSE" + frame.label);
+                } else if (tokens.isSymbol(index, '}') && !frame.hasElse){
+                    // End of the then branch
+                    frame.hasElse = true;
+                    vm.writeGoto("IF_END" + frame.label);
+                    vm.writeLabel("IF_FALSE" + frame.label);
+                }
+                break;
+
+            case whileStatement:
+                if (child == 0){
+                    vm.writeLabel("WHILE_EXP" + frame.label);
+                } else if (tokens.isSymbol(index, ')')){
+                    vm.writeArithmetic(Command.NOT);
+                    vm.writeIf("WHILE_END" + frame.label);
+                }
+                break;
+
+            case expression:
+                if (type == TokenType.SYMBOL){
+                    frame.op = tokens.getSymbol(index);
+                }
+                break;
+
+            case doStatement:
+                if (child > 0){
+                    callTerminal(frame, tokens, index);
+                }
+                break;
+
+            case term:
+                if (child == 0){
+                    firstTermTerminal(frame, tokens, index);
+                } else if (tokens.isSymbol(index, '[')){
+                    pushVariable(
+                        frame.pendingId, frame.pendingName, frame.pendingOffset
+                    );
+                    frame.pendingName = null;
+                } else if (tokens.isSymbol(index, ']')){
+                    vm.writeArithmetic(Command.ADD);
+                    vm.writePop(Segment.POINTER, 1);
+                    vm.writePush(Segment.THAT, 0);
+                } else if (!frame.grouped){
+                    callTerminal(frame, tokens, index);
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    // Constants, unary operators, ( and the first name of a term
+    private void firstTermTerminal(Frame frame, TokenBuffer tokens, int index){
+        switch (tokens.getTokenType(index)){
+            case INT_CONST:
+                frame.constant = true;
+                frame.value = tokens.getIntVal(index);
+                pendingConstants++;
+                break;
+
+            case STRING_CONST:
+                flushConstants();
+                String string = tokens.getText(index);
+                vm.writePush(Segment.CONSTANT, string.length());
+                vm.writeCall("String.new", 1);
+                for (int i = 0; i < string.length(); i++){
+                    vm.writePush(Segment.CONSTANT, string.charAt(i));
+                    vm.writeCall("String.appendChar", 2);
+                }
+                break;
+
+            case KEYWORD:
+                if (tokens.getKeyword(index) == KeywordType.THIS){
+                    flushConstants();
+                    vm.writePush(Segment.POINTER, 0);
+                    break;
+                }
+                // true is -1; false and null are 0
+                frame.constant = true;
+                frame.value = tokens.getKeyword(index) == KeywordType.TRUE ? -1 : 0;
+                pendingConstants++;
+                break;
+
+            case SYMBOL:
+                if (tokens.isSymbol(index, '(')){
+                    frame.grouped = true;
+                } else {
+                    frame.op = tokens.getSymbol(index);
+                }
+                break;
+
+            case IDENTIFIER:
+                // A variable, array entry or call: its code follows
+                flushConstants();
+                frame.pendingId = tokens.getId(index);
+                frame.pendingName = tokens.getText(index);
+                frame.pendingOffset = tokens.getOffset(index);
+                break;
+        }
+    }
+
+    // A term of expression has ended. Either side of its operator may be a
+    // constant still waiting in its frame.
+    private void endOperand(Frame expression, Frame term){
+        char op = expression.op;
+        expression.op = 0;
+        if (!term.constant){
+            // The term's code is written, and so is the left operand
+            if (expression.factor){
+                expression.factor = false;
+                writeMultiply(expression.value);
+            } else if (op != 0){
+                writeOperator(op);
+            }
+            return;
+        }
+
+        if (op == 0){
+            // The first term: hand the constant to the expression
+            expression.constant = true;
+            expression.value = term.value;
+            return;
+        }
+        pendingConstants--;
+        if (expression.constant && canFold(expression.value, op, term.value)){
+            expression.value = fold(expression.value, op, term.value);
+            return;
+        }
+        flushConstants();
+        if (op == '*'){
+            writeMultiply(term.value);
+        } else if (op == '/' && term.value == -1){
+            vm.writeArithmetic(Command.NEG);
+        } else if (!isRightIdentity(op, term.value)){
+            pushConstant(term.value);
+            writeOperator(op);
+        }
+    }
+
+    // Multiplies the value on the stack by a constant. Small factors
+    // become a chain of doublings and adds (x * 10 = ((x * 2) * 2 + x) * 2)
+    // with the operand kept in temp 1 and the doubled value in temp 2;
+    // Math.multiply takes hundreds of commands for the same work.
+    private void writeMultiply(int factor){
+        int n = Math.abs(factor);
+        int bits = 32 - Integer.numberOfLeadingZeros(n);
+        boolean powerOfTwo = Integer.bitCount(n) == 1;
+        int chain = (powerOfTwo ? 0 : 2) + 4 * (bits - 1)
+            + 2 * (Integer.bitCount(n) - 1) + (factor < 0 ? 1 : 0);
+
+        if (factor == 0){
+            // Drop x, keeping whatever its code did
+            vm.writePop(Segment.TEMP, 0);
+            vm.writePush(Segment.CONSTANT, 0);
+            return;
+        }
+        if (factor == Short.MIN_VALUE || chain > MAX_MULTIPLY_CHAIN){
+            pushConstant(factor);
+            vm.writeCall("Math.multiply", 2);
+            return;
+        }
+
+        if (!powerOfTwo){
+            vm.writePop(Segment.TEMP, 1);
+            vm.writePush(Segment.TEMP, 1);
+        }
+        for (int bit = bits - 2; bit >= 0; bit--){
+            vm.writePop(Segment.TEMP, 2);
+            vm.writePush(Segment.TEMP, 2);
+            vm.writePush(Segment.TEMP, 2);
+            vm.writeArithmetic(Command.ADD);
+            if ((n >> bit & 1) != 0){
+                vm.writePush(Segment.TEMP, 1);
+                vm.writeArithmetic(Command.ADD);
+            }
+        }
+        if (factor < 0){
+            vm.writeArithmetic(Command.NEG);
+        }
+    }
+
+    // Writes every constant still waiting in an open frame, outermost
+    // first, ahead of code that is about to be written. A constant on the
+    // left of an operator it is the identity of (0 + x, 0 | x, -1 & x) is
+    // dropped along with the operator, and c * x is kept back to be
+    // written as x * c.
+    private void flushConstants(){
+        if (pendingConstants == 0) return;
+        for (int i = 0; i < depth; i++){
+            Frame frame = frames[i];
+            if (!frame.constant) continue;
+            frame.constant = false;
+            if (frame.kind == NonTerminal.expression && frame.op == '*'){
+                frame.factor = true;
+            } else if (frame.kind == NonTerminal.expression
+                    && isLeftIdentity(frame.value, frame.op)){
+                frame.op = 0;
+            } else {
+                pushConstant(frame.value);
+            }
+        }
+        pendingConstants = 0;
+    }
+
+    // Any 16-bit value; push constant itself only takes 0..32767
+    private void pushConstant(int value){
+        if (value >= 0){
+            vm.writePush(Segment.CONSTANT, value);
+        } else if (value == -1){
+            vm.writePush(Segment.CONSTANT, 0);
+            vm.writeArithmetic(Command.NOT);
+        } else if (value == Short.MIN_VALUE){
+            vm.writePush(Segment.CONSTANT, Short.MAX_VALUE);
+            vm.writeArithmetic(Command.NOT);
+        } else {
+            vm.writePush(Segment.CONSTANT, -value);
+            vm.writeArithmetic(Command.NEG);
+        }
+    }
+
+    private static boolean canFold(int left, char op, int right){
+        // Leave division by zero, and the one quotient that overflows,
+        // to Math.divide at run time
+        return op != '/' || right != 0 && !(left == Short.MIN_VALUE && right == -1);
+    }
+
+    // Evaluates left op right with the Hack platform's 16-bit arithmetic
+    private static int fold(int left, char op, int right){
+        switch (op){
+            case '+':
+                return (short) (left + right);
+            case '-':
+                return (short) (left - right);
+            case '*':
+                return (short) (left * right);
+            case '/':
+                return (short) (left / right);
+            case '&':
+                return left & right;
+            case '|':
+                return left | right;
+            case '<':
+                return left < right ? -1 : 0;
+            case '>':
+                return left > right ? -1 : 0;
+            case '=':
+                return left == right ? -1 : 0;
+            default:
+                throw new RuntimeException("Unknown operator " + op);
+        }
+    }
+
+    // x + 0, x - 0, x * 1, x / 1, x | 0, x & -1
+    private static boolean isRightIdentity(char op, int value){
+        switch (op){
+            case '+':
+            case '-':
+            case '|':
+                return value == 0;
+            case '*':
+            case '/':
+                return value == 1;
+            case '&':
+                return value == -1;
+            default:
+                return false;
+        }
+    }
+
+    // 0 + x, 0 | x, -1 & x
+    private static boolean isLeftIdentity(int value, char op){
+        switch (op){
+            case '+':
+            case '|':
+                return value == 0;
+            case '&':
+                return value == -1;
+            default:
+                return false;
+        }
+    }
+
+    // The tokens of a subroutine call, in a term or a do statement:
+    // name ( expressionList ) or name . name ( expressionList )
+    private void callTerminal(Frame frame, TokenBuffer tokens, int index){
+        if (tokens.getTokenType(index) == TokenType.IDENTIFIER){
+            if (frame.qualified){
+                frame.callName = tokens.getText(index);
+            } else {
+                frame.pendingId = tokens.getId(index);
+                frame.pendingName = tokens.getText(index);
+                frame.pendingOffset = tokens.getOffset(index);
+            }
+            return;
+        }
+
+        switch (tokens.getSymbol(index)){
+            case '.':
+                // varName.method(...) calls a method on that object;
+                // anything else is ClassName.function(...)
+                frame.qualified = true;
+                if (symbols.kindOf(frame.pendingId) != VarKind.NONE){
+                    pushVariable(
+                        frame.pendingId, frame.pendingName, frame.pendingOffset
+                    );
+                    frame.callClass = symbols.typeOf(frame.pendingId);
+                    frame.nArgs = 1;
+                } else {
+                    frame.callClass = frame.pendingName;
+                }
+                frame.pendingName = null;
+                break;
+
+            case '(':
+                if (!frame.qualified){
+                    // name(...) is a method on this object
+                    vm.writePush(Segment.POINTER, 0);
+                    frame.callClass = className;
+                    frame.callName = frame.pendingName;
+                    frame.nArgs = 1;
+                    frame.pendingName = null;
+                }
+                break;
+
+            case ')':
+                vm.writeCall(frame.callClass + "." + frame.callName, frame.nArgs);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    // static|field|var type name (, name)* ; and type name (, type name)*
+    private void declare(Frame frame, TokenBuffer tokens, int index, int child){
+        if (frame.kind != NonTerminal.parameterList && child == 0){
+            switch (tokens.getKeyword(index)){
+                case STATIC:
+                    frame.varKind = VarKind.STATIC;
+                    break;
+                case FIELD:
+                    frame.varKind = VarKind.FIELD;
+                    break;
+                default:
+                    frame.varKind = VarKind.VAR;
+                    break;
+            }
+            frame.expectType = true;
+            return;
+        }
+        if (frame.kind == NonTerminal.parameterList && child == 0){
+            frame.varKind = VarKind.ARG;
+            frame.expectType = true;
+        }
+
+        if (tokens.getTokenType(index) == TokenType.SYMBOL){
+            // A comma in a parameter list is followed by another type
+            frame.expectType = frame.kind == NonTerminal.parameterList;
+            return;
+        }
+        if (frame.expectType){
+            frame.varType = tokens.getTokenType(index) == TokenType.KEYWORD ?
+                tokens.getKeyword(index).toString() : tokens.getText(index);
+            frame.expectType = false;
+            return;
+        }
+        if (!symbols.define(tokens.getId(index), frame.varType, frame.varKind)){
+            throw new ParseError(
+                tokens.getOffset(index), "Duplicate variable " + tokens.getText(index)
+            );
+        }
+    }
+
+    private void writeFunction(){
+        vm.writeFunction(
+            className + "." + subroutineName, symbols.varCount(VarKind.VAR)
+        );
+        switch (subroutineKind){
+            case CONSTRUCTOR:
+                vm.writePush(Segment.CONSTANT, symbols.varCount(VarKind.FIELD));
+                vm.writeCall("Memory.alloc", 1);
+                vm.writePop(Segment.POINTER, 0);
+                break;
+            case METHOD:
+                vm.writePush(Segment.ARGUMENT, 0);
+                vm.writePop(Segment.POINTER, 0);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeOperator(char op){
+        switch (op){
+            case '+':
+                vm.writeArithmetic(Command.ADD);
+                break;
+            case '-':
+                vm.writeArithmetic(Command.SUB);
+                break;
+            case '*':
+                vm.writeCall("Math.multiply", 2);
+                break;
+            case '/':
+                vm.writeCall("Math.divide", 2);
+                break;
+            case '&':
+                vm.writeArithmetic(Command.AND);
+                break;
+            case '|':
+                vm.writeArithmetic(Command.OR);
+                break;
+            case '<':
+                vm.writeArithmetic(Command.LT);
+                break;
+            case '>':
+                vm.writeArithmetic(Command.GT);
+                break;
+            case '=':
+                vm.writeArithmetic(Command.EQ);
+                break;
+            default:
+                throw new RuntimeException("Unknown operator " + op);
+        }
+    }
+
+    // offset: where the name is in the source, for the error if it is
+    // not a variable
+    private void pushVariable(int id, String name, int offset){
+        VarKind kind = lookup(id, name, offset);
+        vm.writePush(kind.getSegment(), symbols.indexOf(id));
+    }
+
+    private VarKind lookup(int id, String name, int offset){
+        VarKind kind = symbols.kindOf(id);
+        if (kind == VarKind.NONE){
+            throw new ParseError(offset, "Undefined variable " + name);
+        }
+        return kind;
+    }
+
+    private Frame push(NonTerminal kind){
+        if (depth == frames.length){
+            frames = java.util.Arrays.copyOf(frames, depth * 2);
+        }
+        Frame frame = frames[depth];
+        if (frame == null){
+            frame = frames[depth] = new Frame();
+        }
+        frame.reset(kind);
+        depth++;
+        return frame;
+    }
+}
+
+// What the code generator knows about one open non-terminal
+class Frame {
+
+    NonTerminal kind;
+    int children;
+
+    // Declarations
+    VarKind varKind;
+    String varType;
+    boolean expectType;
+
+    // let target, or an identifier in a term not yet known to be a
+    // variable, an array or the start of a call
+    int targetId;
+    String targetName;
+    int targetOffset;
+    int pendingId;
+    String pendingName;
+    int pendingOffset;
+    boolean array;
+
+    // Subroutine calls
+    boolean qualified;
+    String callClass;
+    String callName;
+    int nArgs;
+
+    // Pending operator: binary in an expression, unary in a term
+    char op;
+    boolean grouped;
+    // A constant term or expression value that has not been written yet
+    boolean constant;
+    int value;
+    // value is the left factor of a multiplication still to be written
+    boolean factor;
+    boolean hasValue;
+    boolean hasElse;
+    int label;
+
+    void reset(NonTerminal kind){
+        this.kind = kind;
+        children = 0;
+        varKind = null;
+        varType = null;
+        expectType = false;
+        targetName = null;
+        pendingName = null;
+        array = false;
+        qualified = false;
+        callClass = null;
+        callName = null;
+        nArgs = 0;
+        op = 0;
+        grouped = false;
+        constant = false;
+        factor = false;
+        hasValue = false;
+        hasElse = false;
+    }
+}
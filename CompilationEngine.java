@@ -1,555 +1,424 @@
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A predictive LL(2) parser: every decision is made from the current token
+// and, after an identifier in a term, the one after it, so each token is
+// looked at a constant number of times and nothing is parsed twice.
+// Holds no static mutable state: any number of engines can run at once on
+// different threads.
 public class CompilationEngine {
 
-    private static Pattern xmlPattern = Pattern.compile(
-        // Token Type
-        "<(?<type>keyword|identifier|symbol|integerConstant|stringConstant)> " +
-        // Value of token
-        "(?<value>.+) " +
-        // Must be the same as first token type
-        "<\\/\\1>"
-    );
-
-    private static List<String> possibleTypes = new ArrayList<String>(
-        Arrays.asList(
-            "int", "char", "boolean", "void",
-            "Math", "String", "Array", "Output",
-            "Screen", "Keyboard", "Memory", "Sys"
-        )
-    );
-
+    // The type names this compilation accepts; the class being compiled
+    // is added to it
+    private TypeRegistry types;
+    // Tokens are pulled from the tokenizer as the parser reaches them
+    // (peek/advance); only a small window around its cursor is ever held
+    // in memory.
     private JackTokenizer tokenizer;
-    private List<Token> tokens;
-    private int numTokens;
-    private List<Token> compiledTokens;
-    private int compilationPointer;
-
+    private TokenBuffer tokens;
+    // Symbol ids already found in types, so repeated type names are a bit
+    // test instead of a hash lookup
+    private BitSet knownTypeIds = new BitSet();
+    // Wraps the listener the engine was given, see GuardedListener
+    private GuardedListener listener;
+    // Only set when the engine collects its own output
+    private TokenCollector collector;
+
+    // compileExpression's steps, and what is left to do when a nested
+    // expression or term is done
+    private static final int TERM = 0;
+    private static final int TERM_DONE = 1;
+    private static final int EXPRESSION_DONE = 2;
+    private static final int AFTER_TERM = 0;     // (op term)*
+    private static final int AFTER_UNARY = 1;    // end the unary term
+    private static final int AFTER_GROUP = 2;    // )
+    private static final int AFTER_INDEX = 3;    // ]
+    private static final int AFTER_ARGUMENT = 4; // , expression or )
+    private int[] pending = new int[32];
+    private int pendingSize;
+
+    // Parse the subroutines on workers, see compileSubroutinesInParallel
+    private boolean parallel;
+    // Set on the engines that parse one subroutine for a worker. They stop
+    // at the first error instead of recovering; failed records it.
+    private boolean worker;
+    private boolean failed;
+    // What the workers allocated on other threads than this engine's, see
+    // getWorkerAllocatedBytes
+    private long workerAllocatedBytes;
+
+    // Collects the output, see getTokens
     public CompilationEngine(JackTokenizer tokenizer){
+        this(tokenizer, new TokenCollector());
+        this.collector = (TokenCollector) this.listener.getListener();
+    }
+
+    // Streams the output to listener as it is parsed
+    public CompilationEngine(JackTokenizer tokenizer, ParseListener listener){
+        this(tokenizer, listener, new TypeRegistry());
+    }
+
+    // types: the registry this compilation checks and adds to
+    public CompilationEngine(JackTokenizer tokenizer, ParseListener listener,
+            TypeRegistry types){
+        this(tokenizer, listener, types, false);
+    }
+
+    // parallel: parse the subroutines of the class on several threads;
+    // the listener still gets every event on this thread, in source
+    // order, exactly as without it
+    public CompilationEngine(JackTokenizer tokenizer, ParseListener listener,
+            TypeRegistry types, boolean parallel){
+        if (parallel){
+            // Workers need every token, not a window
+            tokenizer.readAll();
+        }
+        this.parallel = parallel;
         this.tokenizer = tokenizer;
-        tokens = this.tokenizer.getTokens();
-        numTokens = tokens.size();
+        this.types = types;
+        this.tokens = tokenizer.getTokenBuffer();
 
-        this.compiledTokens = new ArrayList<Token>();
-        this.compilationPointer = 0;
+        this.listener = new GuardedListener(listener, tokenizer);
 
         try{
             compileClass();
-        } catch (Exception e) {
-            throw e;
+        } catch (RuntimeException e) {
+            // Anything recovery could not get past, e.g. the end of the file
+            report(e);
+        }
+        // Lex what the parse never reached, so its lexical errors are
+        // reported too
+        while (tokenizer.hasMoreTokens()){
+            tokenizer.advance();
         }
+        tokenizer.checkDiagnostics();
     }
 
+    // Parses the subroutine at the cursor of tokenizer, a fork of parent's,
+    // for a worker
+    private CompilationEngine(CompilationEngine parent, JackTokenizer tokenizer,
+            BitSet knownTypeIds, ParseListener listener){
+        this.tokenizer = tokenizer;
+        this.types = parent.types;
+        this.tokens = parent.tokens;
+        this.knownTypeIds = knownTypeIds;
+        this.listener = new GuardedListener(listener, tokenizer);
+        this.worker = true;
+
+        try {
+            compileSubroutine();
+        } catch (RuntimeException e){
+            failed = true;
+        }
+    }
+
+    // class
+    // = class className { classVarDec* subroutineDec* }
     private void compileClass(){
-        Matcher match;
-        boolean foundClass = false;
+        if (tokenizer.peek(2) < 0){
+            throw error(-1, "No Class Found.");
+        }
 
-        if (numTokens < 3){
-            throw new RuntimeException(
+        int currToken = advance();
+        if (!isKeyword(currToken, KeywordType.CLASS)){
+            throw error(currToken,
                 "No Class Found."
             );
         }
+        listener.startNonTerminal(NonTerminal.CLASS);
+        emit(currToken);
 
-        // class
-        // = class className {
-        Token currToken;
-        for(; compilationPointer < 3; compilationPointer++){
-            currToken = tokens.get(compilationPointer);
-            match = getMatch(currToken);
-
-            // class
-            if(compilationPointer == 0){
-                if (
-                    match.group("type").equals("keyword") &
-                    match.group("value").equals("class")
-                    ){
-                        compiledTokens.add(
-                            new Token(NonTerminal.CLASS, false)
-                        );
-                        compiledTokens.add(currToken);
-                } else {
-                    throw new RuntimeException(
-                        "No Class Found."
-                    );
-                }
-            }
-
-            // className
-            if(compilationPointer == 1){
-                if (!match.group("type").equals("identifier"))
-                    throw new RuntimeException(
-                        "No Class Found."
-                    );
-                possibleTypes.add(match.group("value"));
-                compiledTokens.add(currToken);
-            }
-
-            // {
-            if (compilationPointer == 2){
-                if (
-                    !match.group("type").equals("symbol") |
-                    !match.group("value").equals("{")
-                ){
-                    throw new RuntimeException(
-                        "No Class Found."
-                    );
-                }
-                compiledTokens.add(currToken);
-                foundClass = true;
-            }
-        }
-        if (!foundClass){
-            throw new RuntimeException(
+        // className
+        currToken = advance();
+        if (tokens.getTokenType(currToken) != TokenType.IDENTIFIER){
+            throw error(currToken,
                 "No Class Found."
             );
         }
+        types.add(tokens.getText(currToken));
+        knownTypeIds.set(tokens.getId(currToken));
+        emit(currToken);
 
-        compilationPointer = 3;
+        expectSymbol('{', "No Class Found.");
 
         // classVarDec
         // = static|field type varName (, varName)*;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer);
-            match = getMatch(currToken);
-
-            if (
-                match.group("type").equals("keyword") &
-                (
-                match.group("value").equals("static") |
-                match.group("value").equals("field")
-                )
-            ){
-                compiledTokens.add(new Token(NonTerminal.classVarDec, false));
-                compiledTokens.add(currToken);
+        while (
+            isKeyword(peek(0), KeywordType.STATIC) |
+            isKeyword(peek(0), KeywordType.FIELD)
+        ){
+            int start = tokenizer.getPosition();
+            try {
                 compileClassVarDec();
-            } else {
-                break;
+            } catch (RuntimeException e){
+                recover(e, start, 1);
+                skipDeclaration();
             }
         }
 
         // subroutineDec
         // = constructor|function|method void|type name ( parameterList ) subroutineBody
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer);
-            match = getMatch(currToken);
-
-            if (
-                match.group("type").equals("keyword") &
-                (
-                match.group("value").equals("constructor") |
-                match.group("value").equals("function") |
-                match.group("value").equals("method")
-                )
-            ){
-                compiledTokens.add(new Token(NonTerminal.subroutineDec, false));
-                compiledTokens.add(currToken);
-                compilationPointer++;
+        if (parallel){
+            compileSubroutinesInParallel();
+        }
+        // Whatever the workers did not parse
+        while (isSubroutineKeyword(peek(0))){
+            int start = tokenizer.getPosition();
+            try {
                 compileSubroutine();
-                continue;
-            } else {
-                break;
+            } catch (RuntimeException e){
+                recover(e, start, 1);
+                skipSubroutine();
             }
         }
 
         // }
-        currToken = tokens.get(compilationPointer);
-        match = getMatch(currToken);
-        if (match.group("value").equals("}")){
-            compiledTokens.add(currToken);
-            compiledTokens.add(new Token(NonTerminal.CLASS, true));
-        } else{
-            throw new RuntimeException("Unterminated Class");
-        }
+        expectSymbol('}', "Unterminated Class");
+        listener.endNonTerminal(NonTerminal.CLASS);
     }
 
-    private void compileClassVarDec(){
-
-        while (compilationPointer < numTokens){
-            compilationPointer++;
-            compileVarDec();
-            break;
+    // Splits the subroutines apart by matching braces and parses each one
+    // on a worker, recording its events. If every worker parsed exactly
+    // its own tokens the recordings are replayed to the listener in
+    // order; otherwise (a syntax error, or braces that do not match) the
+    // recordings are dropped and the subroutines are parsed again here,
+    // so errors are reported just as without workers.
+    private void compileSubroutinesInParallel(){
+        List<JackTokenizer> starts = new ArrayList<JackTokenizer>();
+        int end = findSubroutines(starts);
+        int count = starts.size();
+        if (count < 2) return;
+        // Where each subroutine should end, read before the workers move
+        // their tokenizers
+        int[] ends = new int[count];
+        for (int i = 0; i + 1 < count; i++){
+            ends[i] = starts.get(i + 1).getPosition();
         }
-
-        compiledTokens.add(new Token(NonTerminal.classVarDec, true));
-    }
-
-    private void compileSubroutine(){
-        Matcher match;
-        Token currToken;
-        boolean foundType = false;
-        boolean openPar = false;
-        boolean openCurl = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // Void or type
-            if(!foundType){
-                if (
-                    (match.group("type").equals("keyword") |
-                    match.group("type").equals("identifier")) &
-                    possibleTypes.contains(match.group("value"))
-                ){
-                    compiledTokens.add(currToken);
-                    foundType = true;
-                    continue;
-                }
-            }
-
-            // Name
-            if (match.group("type").equals("identifier")){
-                if(!foundType){
-                    throw new RuntimeException("No type declared.");
+        ends[count - 1] = end;
+
+        CompilationEngine[] engines = new CompilationEngine[count];
+        EventRecorder[] recorders = new EventRecorder[count];
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        Thread owner = Thread.currentThread();
+        AtomicLong allocated = new AtomicLong();
+        for (int i = 0; i < count; i++){
+            final int index = i;
+            final BitSet known = (BitSet) knownTypeIds.clone();
+            recorders[i] = new EventRecorder();
+            tasks.add(ForkJoinTask.adapt(() -> {
+                long before = CompileStats.allocatedBytes();
+                engines[index] = new CompilationEngine(
+                    this, starts.get(index), known, recorders[index]
+                );
+                if (Thread.currentThread() != owner){
+                    allocated.addAndGet(CompileStats.allocatedBytes() - before);
                 }
-                compiledTokens.add(currToken);
-                continue;
-            }
-
-            // (
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("(")
-                ){
-                    if (openPar){
-                        throw new RuntimeException("Hanging (");
-                    }
-                    openPar = true;
-                    compiledTokens.add(currToken);
-            }
-
-            // Parameter list
-            // = type name, type name*
-            compileParameterList();
-            break;
+            }));
         }
+        ForkJoinTask.invokeAll(tasks);
+        workerAllocatedBytes += allocated.get();
 
-        // Body
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // {
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("{")
-                ){
-                    if (openCurl){
-                        throw new RuntimeException("Hanging {");
-                    }
-                    openCurl = true;
-                    compiledTokens.add(new Token(NonTerminal.subroutineBody, false));
-                    compiledTokens.add(currToken);
-                    continue;
+        for (int i = 0; i < count; i++){
+            if (engines[i].failed
+                    || engines[i].tokenizer.getPosition() != ends[i]){
+                return;
             }
+        }
+        for (int i = 0; i < count; i++){
+            recorders[i].replay(listener, tokens);
+        }
+        while (tokenizer.getPosition() < end){
+            tokenizer.advance();
+        }
+    }
 
-
-            // subroutineBody
-            // = varDec* statements
-            // = var type name (, name)*;
-            // = statements...
-            if(openCurl){
-                while (
-                    match.group("type").equals("keyword") &
-                    match.group("value").equals("var")
-                    ){
-                        compiledTokens.add(
-                            new Token(NonTerminal.varDec, false)
-                        );
-                        compiledTokens.add(currToken);
-                        compileVarDec();
-
-                        currToken = tokens.get(compilationPointer++);
-                        match = getMatch(currToken);
-
-                        compiledTokens.add(
-                            new Token(NonTerminal.varDec, true)
-                        );
+    // Adds a tokenizer at the start of each subroutine from the cursor on
+    // to starts and returns the position where the last one ends; stops
+    // early at anything but a subroutine or at braces that do not close
+    private int findSubroutines(List<JackTokenizer> starts){
+        JackTokenizer scan = tokenizer.fork();
+        int end = scan.getPosition();
+        while (scan.hasMoreTokens() && isSubroutineKeyword(scan.peek(0))){
+            JackTokenizer start = scan.fork();
+            int depth = 0;
+            boolean opened = false;
+            while (scan.hasMoreTokens()){
+                int currToken = scan.advance();
+                if (isSymbol(currToken, '{')){
+                    depth++;
+                    opened = true;
+                } else if (isSymbol(currToken, '}')){
+                    if (--depth <= 0) break;
                 }
-                compilationPointer--;
-                compileStatements();
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
             }
-
-            // }
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("}")
-                ){
-                    if (!openCurl){
-                        throw new RuntimeException("Hanging }");
-                    }
-                    compiledTokens.add(currToken);
-                    break;
+            if (!opened || depth != 0){
+                break;
             }
-
+            starts.add(start);
+            end = scan.getPosition();
         }
+        return end;
+    }
 
-        compiledTokens.add(new Token(NonTerminal.subroutineBody, true));
-        compiledTokens.add(new Token(NonTerminal.subroutineDec, true));
+    private void compileClassVarDec(){
+        listener.startNonTerminal(NonTerminal.classVarDec);
+        emit(advance());
+        compileVarDec();
+        listener.endNonTerminal(NonTerminal.classVarDec);
     }
 
-    private void compileParameterList(){
-        Matcher match;
-        Token currToken = null;
-        boolean validVariables = true;
-        boolean foundType = false;
-
-        compiledTokens.add(new Token(NonTerminal.parameterList, false));
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // )
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals(")")
-                ){
-                    if (!validVariables){
-                        throw new RuntimeException("Invalid variables.");
-                    }
-                    break;
-            }
+    private void compileSubroutine(){
+        listener.startNonTerminal(NonTerminal.subroutineDec);
+        emit(advance());
 
-            // Type
-            if (!foundType){
-                if (
-                    (match.group("type").equals("keyword") |
-                    match.group("type").equals("identifier")) //&
-                    //possibleTypes.contains(match.group("value")) TODO
-                    ){
-                        compiledTokens.add(currToken);
-                        validVariables = false;
-                        foundType = true;
-                        continue;
-                } else {
-                    throw new RuntimeException(
-                        "Unknown type " + match.group("value")
-                    );
-                }
-            }
+        // Void or type
+        int currToken = advance();
+        if (!isKnownType(currToken)){
+            throw error(currToken, "Unknown type " + valueOf(currToken));
+        }
+        emit(currToken);
+
+        // Name
+        expectIdentifier("No subroutine name.");
+
+        // ( parameterList )
+        expectSymbol('(', "Expected (");
+        compileParameterList();
+        expectSymbol(')', "Invalid variables.");
+
+        // subroutineBody
+        // = { varDec* statements }
+        listener.startNonTerminal(NonTerminal.subroutineBody);
+        expectSymbol('{', "Expected {");
+        while (isKeyword(peek(0), KeywordType.VAR)){
+            listener.startNonTerminal(NonTerminal.varDec);
+            emit(advance());
+            compileVarDec();
+            listener.endNonTerminal(NonTerminal.varDec);
+        }
+        compileStatements();
+        expectSymbol('}', "Hanging {");
 
-            // Variable Name
-            if (match.group("type").equals("identifier")){
-                if(!foundType){
-                    throw new RuntimeException("No type declared.");
-                }
-                compiledTokens.add(currToken);
-                validVariables = true;
-                continue;
-            }
+        listener.endNonTerminal(NonTerminal.subroutineBody);
+        listener.endNonTerminal(NonTerminal.subroutineDec);
+    }
 
-            // ,
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals(",")
-                ){
-                    if (!validVariables){
-                        throw new RuntimeException("Hanging comma.");
-                    }
-                    compiledTokens.add(currToken);
-                    validVariables = false;
-                    foundType = false;
-                    continue;
+    // parameterList
+    // = (type name (, type name)*)?
+    private void compileParameterList(){
+        listener.startNonTerminal(NonTerminal.parameterList);
+        if (!isSymbol(peek(0), ')')){
+            compileTypeAndName();
+            while (isSymbol(peek(0), ',')){
+                emit(advance());
+                compileTypeAndName();
             }
         }
-
-        compiledTokens.add(new Token(NonTerminal.parameterList, true));
-        compiledTokens.add(currToken);
+        listener.endNonTerminal(NonTerminal.parameterList);
     }
 
+    // The rest of a varDec or classVarDec once its keyword is emitted
+    // = type name (, name)*;
     private void compileVarDec(){
-        Matcher match;
-        Token currToken;
-        boolean validVariables = false;
-        boolean foundType = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // Type
-            if (!foundType){
-                if (
-                    (match.group("type").equals("keyword") |
-                    match.group("type").equals("identifier")) // &
-                    // possibleTypes.contains(match.group("value")) TODO
-                    ){
-                        compiledTokens.add(currToken);
-                        foundType = true;
-                        continue;
-                } else {
-                    throw new RuntimeException(
-                        "Unknown type " + match.group("value")
-                    );
-                }
-            }
-
-            // Variable Name
-            if (match.group("type").equals("identifier")){
-                if(!foundType){
-                    throw new RuntimeException("No type declared.");
-                }
-                compiledTokens.add(currToken);
-                validVariables = true;
-                continue;
-            }
-
-            // ,
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals(",")
-                ){
-                    if (!foundType){
-                        throw new RuntimeException("No type declared.");
-                    }
-                    if (!validVariables){
-                        throw new RuntimeException("Hanging comma.");
-                    }
-                    compiledTokens.add(currToken);
-                    validVariables = false;
-                    continue;
-            }
+        compileTypeAndName();
+        while (isSymbol(peek(0), ',')){
+            emit(advance());
+            expectIdentifier("Hanging comma.");
+        }
+        expectSymbol(';', "Invalid variables.");
+    }
 
-            // ;
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals(";")
-                ){
-                    if (!foundType){
-                        throw new RuntimeException("No type declared.");
-                    }
-                    if (!validVariables){
-                        throw new RuntimeException("Invalid variables.");
-                    }
-                    compiledTokens.add(currToken);
-                    break;
-            }
+    private void compileTypeAndName(){
+        int currToken = advance();
+        if (!isTypeName(currToken)){
+            throw error(currToken,
+                "Unknown type " + valueOf(currToken)
+            );
         }
+        emit(currToken);
+        expectIdentifier("Invalid variables.");
     }
 
+    // statements
+    // = statement*, up to the closing }
     private void compileStatements(){
-        Matcher match;
-        Token currToken;
-        compiledTokens.add(new Token(NonTerminal.statements, false));
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            if (match.group("type").equals("symbol")){
-                compilationPointer--;
-                break;
+        listener.startNonTerminal(NonTerminal.statements);
+        int currToken;
+        int depth = listener.getDepth();
+        while (!isSymbol(currToken = peek(0), '}')){
+            int start = tokenizer.getPosition();
+            try {
+                compileStatement(currToken);
+            } catch (RuntimeException e){
+                recover(e, start, depth);
+                skipStatement();
             }
+        }
 
-            // Invalid statement
-            if (!match.group("type").equals("keyword")){
-                throw new RuntimeException(
-                        "Invalid statement keyword " + match.group("value")
-                    );
-            }
+        listener.endNonTerminal(NonTerminal.statements);
+    }
 
-            switch (match.group("value")){
-                case "let":
-                    compiledTokens.add(new Token(NonTerminal.letStatement, false));
-                    compiledTokens.add(currToken);
-                    compileLet();
-                    compiledTokens.add(new Token(NonTerminal.letStatement, true));
-                    break;
-                case "if":
-                    compiledTokens.add(new Token(NonTerminal.ifStatement, false));
-                    compiledTokens.add(currToken);
-                    compileIf();
-                    compiledTokens.add(new Token(NonTerminal.ifStatement, true));
-                    break;
-                case "while":
-                    compiledTokens.add(new Token(NonTerminal.whileStatement, false));
-                    compiledTokens.add(currToken);
-                    compileWhile();
-                    compiledTokens.add(new Token(NonTerminal.whileStatement, true));
-                    break;
-                case "do":
-                    compiledTokens.add(new Token(NonTerminal.doStatement, false));
-                    compiledTokens.add(currToken);
-                    compileDo();
-                    compiledTokens.add(new Token(NonTerminal.doStatement, true));
-                    break;
-                case "return":
-                    compiledTokens.add(new Token(NonTerminal.returnStatement, false));
-                    compiledTokens.add(currToken);
-                    compileReturn();
-                    compiledTokens.add(new Token(NonTerminal.returnStatement, true));
-                    break;
-                default:
-                    throw new RuntimeException(
-                        "Invalid statement keyword " + match.group("value")
-                    );
-            }
+    private void compileStatement(int currToken){
+        // Invalid statement
+        if (tokens.getTokenType(currToken) != TokenType.KEYWORD){
+            throw error(currToken,
+                "Invalid statement keyword " + valueOf(currToken)
+            );
         }
 
-        compiledTokens.add(new Token(NonTerminal.statements, true));
+        switch (tokens.getKeyword(currToken)){
+            case LET:
+                listener.startNonTerminal(NonTerminal.letStatement);
+                emit(advance());
+                compileLet();
+                listener.endNonTerminal(NonTerminal.letStatement);
+                break;
+            case IF:
+                listener.startNonTerminal(NonTerminal.ifStatement);
+                emit(advance());
+                compileIf();
+                listener.endNonTerminal(NonTerminal.ifStatement);
+                break;
+            case WHILE:
+                listener.startNonTerminal(NonTerminal.whileStatement);
+                emit(advance());
+                compileWhile();
+                listener.endNonTerminal(NonTerminal.whileStatement);
+                break;
+            case DO:
+                listener.startNonTerminal(NonTerminal.doStatement);
+                emit(advance());
+                compileDo();
+                listener.endNonTerminal(NonTerminal.doStatement);
+                break;
+            case RETURN:
+                listener.startNonTerminal(NonTerminal.returnStatement);
+                emit(advance());
+                compileReturn();
+                listener.endNonTerminal(NonTerminal.returnStatement);
+                break;
+            default:
+                throw error(currToken,
+                    "Invalid statement keyword " + valueOf(currToken)
+                );
+        }
     }
 
     private void compileDo(){
         compileSubroutineCall();
-        Token currToken = tokens.get(compilationPointer++);
-        Matcher match = getMatch(currToken);
-
-        if(!match.group("value").equals(";")){
-            throw new RuntimeException("Unterminated");
-        } else {
-            compiledTokens.add(currToken);
-        }
+        expectSymbol(';', "Unterminated");
     }
 
+    // let varName ([expression])? = expression;
     private void compileLet(){
-        Matcher match;
-        Token currToken;
-        boolean openIndex = false;
-        boolean eqFound = false;
-        while (compilationPointer < numTokens){
-            // varName or varName[expression]
-            if (!eqFound) compileVariableOrIndexing();
-            compilationPointer--;
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // =
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("=")
-                ){
-                    if (eqFound){
-                        throw new RuntimeException("Duplicate =");
-                    }
-                    compiledTokens.add(currToken);
-                    eqFound = true;
-            }
-
-            // expression;
-            if (eqFound){
-                if (openIndex){
-                    throw new RuntimeException("Invalid indexing");
-                }
-                compileExpression();
-                compilationPointer--;
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
-                if (
-                    !match.group("type").equals("symbol") |
-                    !match.group("value").equals(";")
-                    ){
-                        throw new RuntimeException("Unterminated Stmt");
-                } else {
-                    compiledTokens.add(currToken);
-                    break;
-                }
-
-            }
-
-        }
+        compileVariableOrIndexing();
+        expectSymbol('=', "Expected =");
+        compileExpression();
+        expectSymbol(';', "Unterminated Stmt");
     }
 
     private void compileWhile(){
@@ -558,506 +427,680 @@ public class CompilationEngine {
     }
 
     private void compileReturn(){
-        Token currToken = tokens.get(compilationPointer);
-        Matcher match = getMatch(currToken);
-
-        if(!match.group("value").equals(";")){
+        if (!isSymbol(peek(0), ';')){
             compileExpression();
-            compilationPointer--;
-            currToken = tokens.get(compilationPointer);
-            match = getMatch(currToken);
-        }
-
-        if(match.group("value").equals(";")){
-            compiledTokens.add(currToken);
-            compilationPointer++;
         }
+        expectSymbol(';', "Unterminated Stmt");
     }
 
     private void compileIf(){
         compileWrappedExpression();
         compileWrappedStatements();
 
-        Token currToken = tokens.get(compilationPointer);
-        Matcher match = getMatch(currToken);
-
-        if (
-            match.group("type").equals("keyword") &
-            match.group("value").equals("else")
-            ){
-                compiledTokens.add(currToken);
-                compilationPointer++;
-                compileWrappedStatements();
+        if (isKeyword(peek(0), KeywordType.ELSE)){
+            emit(advance());
+            compileWrappedStatements();
         }
-
     }
 
+    // expression
+    // = term (op term)*
+    // term
+    // = constant | varName | varName[expression] | subroutineCall
+    //   | (expression) | unaryOp term
+    //
+    // Parsed with an explicit stack instead of recursion, so nesting is
+    // only limited by memory: pending holds what is left to do in every
+    // enclosing expression and term. Within a term the first token
+    // decides, except after an identifier, where the second one tells a
+    // variable, an array and a call apart.
     private void compileExpression(){
+        int base = pendingSize;
+        int step = startExpression();
 
-        compiledTokens.add(new Token(NonTerminal.expression, false));
-
-        Token currToken = tokens.get(compilationPointer);
-        Matcher match = getMatch(currToken);
-
-        compileTerm();
-        compiledTokens.add(new Token(NonTerminal.term, true));
-
-        boolean operator = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-            if (match.group("type").equals("symbol")){
-                switch(match.group("value")){
-                    case "+":
-                    case "-":
-                    case "*":
-                    case "/":
-                    case "&amp;":
-                    case "|":
-                    case "&lt;":
-                    case "&gt;":
-                    case "=":
-                        compiledTokens.add(currToken);
-                        operator = true;
-                        break;
+        while (true){
+            switch (step){
+                case TERM:
+                    step = compileTerm();
+                    break;
 
-                    default:
+                case TERM_DONE:
+                    listener.endNonTerminal(NonTerminal.term);
+                    if (pending[pendingSize - 1] == AFTER_UNARY){
+                        pendingSize--;
                         break;
-                }
-            }
+                    }
+                    // AFTER_TERM: term (op term)*
+                    if (isOperator(peek(0))){
+                        emit(advance());
+                        step = TERM;
+                    } else {
+                        pendingSize--;
+                        listener.endNonTerminal(NonTerminal.expression);
+                        step = EXPRESSION_DONE;
+                    }
+                    break;
 
-            if (operator){
-                compileTerm();
-                compiledTokens.add(new Token(NonTerminal.term, true));
-                operator = false;
-            } else {
-                break;
+                default: // EXPRESSION_DONE
+                    if (pendingSize == base){
+                        return;
+                    }
+                    switch (pending[pendingSize - 1]){
+                        case AFTER_GROUP:
+                            pendingSize--;
+                            expectSymbol(')', "Hanging (");
+                            step = TERM_DONE;
+                            break;
+                        case AFTER_INDEX:
+                            pendingSize--;
+                            expectSymbol(']', "Hanging [");
+                            step = TERM_DONE;
+                            break;
+                        default: // AFTER_ARGUMENT
+                            if (isSymbol(peek(0), ',')){
+                                emit(advance());
+                                step = startExpression();
+                            } else {
+                                pendingSize--;
+                                step = endCall();
+                            }
+                            break;
+                    }
+                    break;
             }
-
         }
-
-        compiledTokens.add(new Token(NonTerminal.expression, true));
     }
 
-    private void compileTerm(){
-        compiledTokens.add(new Token(NonTerminal.term, false));
+    // Opens a term and reads as much of it as can be read before a nested
+    // expression or term; returns the next step
+    private int compileTerm(){
+        listener.startNonTerminal(NonTerminal.term);
+        int currToken = peek(0);
 
-        Matcher match;
-        Token currToken;
-        int brIndex = compilationPointer;
-        boolean isCall = false;
-        boolean canKnow = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
+        switch (tokens.getTokenType(currToken)){
+            // String or Int constant
+            case STRING_CONST:
+            case INT_CONST:
+                emit(advance());
+                return TERM_DONE;
 
-            if(
-                match.group("value").equals(".") |
-                match.group("value").equals("(")
-                ){
-                    if (canKnow){
-                        isCall = true;
+            // Keyword Constant
+            case KEYWORD:
+                if (
+                    isKeyword(currToken, KeywordType.TRUE) |
+                    isKeyword(currToken, KeywordType.FALSE) |
+                    isKeyword(currToken, KeywordType.NULL) |
+                    isKeyword(currToken, KeywordType.THIS)
+                    ){
+                        emit(advance());
+                        return TERM_DONE;
+                }
+                throw error(currToken, "Invalid term " + valueOf(currToken));
+
+            case IDENTIFIER:
+                int nextToken = peek(1);
+                if (isSymbol(nextToken, '(') | isSymbol(nextToken, '.')){
+                    // subroutineCall, its arguments in this same loop
+                    startCall();
+                    listener.startNonTerminal(NonTerminal.expressionList);
+                    if (isSymbol(peek(0), ')')){
+                        return endCall();
                     }
-            }
+                    pushPending(AFTER_ARGUMENT);
+                    return startExpression();
+                }
+                emit(advance());
+                if (isSymbol(nextToken, '[')){
+                    emit(advance());
+                    pushPending(AFTER_INDEX);
+                    return startExpression();
+                }
+                return TERM_DONE;
+
+            default:
+                // Unary term
+                if (isSymbol(currToken, '-') | isSymbol(currToken, '~')){
+                    emit(advance());
+                    pushPending(AFTER_UNARY);
+                    return TERM;
+                }
+                // (expression)
+                if (isSymbol(currToken, '(')){
+                    emit(advance());
+                    pushPending(AFTER_GROUP);
+                    return startExpression();
+                }
+                throw error(currToken, "Invalid term " + valueOf(currToken));
+        }
+    }
 
-            if(canKnow & isCall){ // Subroutine
-                compilationPointer = brIndex;
-                compileSubroutineCall();
-                return;
-            }
+    private int startExpression(){
+        listener.startNonTerminal(NonTerminal.expression);
+        pushPending(AFTER_TERM);
+        return TERM;
+    }
 
-            if(canKnow & !isCall){ // Variable
-                compilationPointer = brIndex;
-                compileVariableOrIndexing();
-                compilationPointer--;
-                return;
-            }
+    // Closes the expressionList of a call inside a term, and the term
+    private int endCall(){
+        listener.endNonTerminal(NonTerminal.expressionList);
+        expectSymbol(')', "Invalid expressions.");
+        return TERM_DONE;
+    }
 
-            if(canKnow){
-                compilationPointer--;
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
-            }
+    private void pushPending(int action){
+        if (pendingSize == pending.length){
+            pending = Arrays.copyOf(pending, pendingSize * 2);
+        }
+        pending[pendingSize++] = action;
+    }
 
-            // String or Int constant
-            switch (match.group("type")){
-                case "stringConstant":
-                case "integerConstant":
-                    compiledTokens.add(currToken);
-                    return;
+    // expressionList
+    // = (expression (, expression)*)?
+    private void compileExpressionList(){
+        listener.startNonTerminal(NonTerminal.expressionList);
+        if (!isSymbol(peek(0), ')')){
+            compileExpression();
+            while (isSymbol(peek(0), ',')){
+                emit(advance());
+                compileExpression();
             }
+        }
+        listener.endNonTerminal(NonTerminal.expressionList);
+    }
 
-            // Keyword Constant
-            switch (match.group("value")){
-                case "true":
-                case "false":
-                case "null":
-                case "this":
-                    compiledTokens.add(currToken);
-                    return;
-            }
+    // subroutineCall
+    // = ((className|varName) .)? subroutineName ( expressionList )
+    private void compileSubroutineCall(){
+        startCall();
+        compileExpressionList();
+        expectSymbol(')', "Invalid expressions.");
+    }
 
-            // Unary term
-            if (
-                match.group("type").equals("symbol") &
-                (match.group("value").equals("-") |
-                 match.group("value").equals("~"))
-                ){
+    // Everything up to and including the ( of a call
+    private void startCall(){
+        expectIdentifier("No name");
+        if (isSymbol(peek(0), '.')){
+            emit(advance());
+            expectIdentifier("No name");
+        }
+        expectSymbol('(', "Expected (");
+    }
 
-                    compiledTokens.add(currToken);
-                    compileTerm();
-                    compiledTokens.add(new Token(NonTerminal.term, true));
-                    return;
-            }
+    // varName ([expression])?
+    private void compileVariableOrIndexing(){
+        expectIdentifier("No variable name");
+        if (isSymbol(peek(0), '[')){
+            emit(advance());
+            compileExpression();
+            expectSymbol(']', "Hanging [");
+        }
+    }
 
-            // (
-            else if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("(")
-                ){
-                    compilationPointer--;
-                    compileWrappedExpression();
-                    return;
-            }
+    private void compileWrappedExpression(){
+        expectSymbol('(', "Expected (");
+        compileExpression();
+        expectSymbol(')', "Hanging (");
+    }
 
-            canKnow = true;
+    private void compileWrappedStatements(){
+        expectSymbol('{', "Expected {");
+        compileStatements();
+        expectSymbol('}', "Hanging {");
+    }
 
+    // The k-th token from the current one, without consuming anything.
+    // The grammar never needs k > 1.
+    private int peek(int k){
+        int index = tokenizer.peek(k);
+        if (index < 0){
+            throw endOfFile();
         }
+        return index;
     }
 
-    private void compileExpressionList(){
-        Matcher match;
-        Token currToken;
-        boolean validExpressions = true;
-        compiledTokens.add(new Token(NonTerminal.expressionList, false));
+    // Consumes the current token
+    private int advance(){
+        peek(0);
+        return tokenizer.advance();
+    }
 
-        // Expression
-        compilationPointer--;
-        compileExpression();
-        compilationPointer--;
-        while (compilationPointer < numTokens){
-
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // ,
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals(",")
-                ){
-                    if (!validExpressions){
-                        throw new RuntimeException("Hanging comma.");
-                    }
-                    compiledTokens.add(currToken);
-                    validExpressions = false;
-                    continue;
-            }
+    // Error recovery. The parser reports a syntax error, skips ahead to a
+    // point where parsing can safely resume (the next statement, class
+    // variable or subroutine) and has the listener pick up again there;
+    // see GuardedListener, which also catches the listener's own errors.
+    // Everything is reported together at the end by
+    // tokenizer.checkDiagnostics.
 
-            if (!validExpressions){
-                compilationPointer--;
-                compileExpression();
-                compilationPointer--;
-                validExpressions = true;
-                continue;
-            }
+    private ParseError error(int token, String message){
+        return new ParseError(token >= 0 ? tokens.getOffset(token) : -1, message);
+    }
 
-            // )
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals(")")
-                ){
-                    if (!validExpressions){
-                        throw new RuntimeException("Invalid expressions.");
-                    }
-                    compilationPointer--;
-                    break;
-            }
+    private ParseError endOfFile(){
+        int last = tokens.size() - 1;
+        int offset = last >= 0 && tokens.getOffset(last) >= 0 ?
+            tokens.getOffset(last) + tokens.getLength(last) : -1;
+        ParseError error = new ParseError(offset, "Unexpected end of file");
+        error.atEnd = true;
+        return error;
+    }
+
+    private void report(RuntimeException e){
+        if (worker){
+            failed = true;
+            return;
+        }
+        if (e instanceof ParseError){
+            tokenizer.report(((ParseError) e).offset, e.getMessage());
+        } else {
+            // Anything else, e.g. from the tokenizer, at the last token
+            // consumed
+            int last = tokenizer.getPosition() - 1;
+            tokenizer.report(
+                tokens.isRetained(last) ? tokens.getOffset(last) : -1,
+                e.getMessage()
+            );
         }
-        compiledTokens.add(new Token(NonTerminal.expressionList, true));
     }
 
-    private void compileSubroutineCall(){
-        Matcher match;
-        Token currToken;
-        boolean nameFound = false;
-        boolean openPar = false;
-
-        int brIndex = compilationPointer;
-        Token possibleName = null;
-
-        // className|varName .
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            if (match.group("type").equals("identifier")){
-                if(possibleName != null){
-                    throw new RuntimeException("Duplicate name");
-                }
-                possibleName = currToken;
+    // Reports e, sends the listener back to the depth it was at when the
+    // failed construct started and makes sure the skip that follows gets
+    // past the token the construct started at
+    private void recover(RuntimeException e, int start, int depth){
+        if (worker || e instanceof ParseError && ((ParseError) e).atEnd){
+            // A worker leaves errors to the sequential parse; at the end
+            // there is nothing left to skip to
+            throw e;
+        }
+        report(e);
+        listener.recover(depth);
+        pendingSize = 0;
+        if (tokenizer.getPosition() == start){
+            advance();
+        }
+    }
+
+    // To the end of the statement: past its ; or the block it opened, or
+    // up to the } closing the enclosing block or the next statement keyword
+    private void skipStatement(){
+        int depth = 0;
+        while (true){
+            int currToken = peek(0);
+            if (isSymbol(currToken, '}')){
+                if (depth == 0) return;
+                advance();
+                if (--depth == 0) return;
                 continue;
             }
-
-            if (possibleName != null){
-                if (
-                    match.group("type").equals("symbol") &
-                    match.group("value").equals(".")
-                    ){
-                    compiledTokens.add(possibleName);
-                    compiledTokens.add(currToken);
-                    break;
-                } else {
-                    compilationPointer = brIndex;
-                    break;
+            if (depth == 0){
+                if (isSymbol(currToken, ';')){
+                    advance();
+                    return;
                 }
+                if (isStatementKeyword(currToken)) return;
             }
+            if (isSymbol(currToken, '{')){
+                depth++;
+            }
+            advance();
         }
+    }
 
-        // subroutineName(expressionList)
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // Subroutine name
-            if (match.group("type").equals("identifier")){
-                if(nameFound){
-                    throw new RuntimeException("Duplicate name");
-                }
-                compiledTokens.add(currToken);
-                nameFound = true;
-                continue;
+    // Past the ; of a class variable declaration
+    private void skipDeclaration(){
+        while (true){
+            int currToken = peek(0);
+            if (isSubroutineKeyword(currToken) |
+                    isKeyword(currToken, KeywordType.STATIC) |
+                    isKeyword(currToken, KeywordType.FIELD)){
+                return;
             }
+            advance();
+            if (isSymbol(currToken, ';')) return;
+        }
+    }
 
-            // (
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("(")
-                ){
-                    compiledTokens.add(currToken);
-                    openPar = true;
+    // Up to the next subroutine, or to the } that ends the file
+    private void skipSubroutine(){
+        while (true){
+            int currToken = peek(0);
+            if (isSubroutineKeyword(currToken)) return;
+            if (isSymbol(currToken, '}')
+                    && tokenizer.peek(1) < 0){
+                return;
             }
+            advance();
+        }
+    }
 
-            if (openPar){
-                if (!nameFound){
-                        throw new RuntimeException("No name");
-                    }
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
-                // )
-                if (
-                    match.group("type").equals("symbol") &
-                    match.group("value").equals(")")
-                    ){
-                        compiledTokens.add(
-                            new Token(NonTerminal.expressionList, false)
-                        );
-                        compiledTokens.add(
-                            new Token(NonTerminal.expressionList, true)
-                        );
-                        compiledTokens.add(currToken);
-                        break;
-                }
+    private boolean isStatementKeyword(int index){
+        if (tokens.getTokenType(index) != TokenType.KEYWORD){
+            return false;
+        }
+        switch (tokens.getKeyword(index)){
+            case LET:
+            case IF:
+            case WHILE:
+            case DO:
+            case RETURN:
+                return true;
+            default:
+                return false;
+        }
+    }
 
-                compileExpressionList();
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
-                // )
-                if (
-                    match.group("type").equals("symbol") &
-                    match.group("value").equals(")")
-                    ){
-                        compiledTokens.add(currToken);
-                        break;
-                }
-            }
+    private boolean isSubroutineKeyword(int index){
+        return isKeyword(index, KeywordType.CONSTRUCTOR) |
+            isKeyword(index, KeywordType.FUNCTION) |
+            isKeyword(index, KeywordType.METHOD);
+    }
+
+    private void expectSymbol(char symbol, String message){
+        // Left unconsumed if it is wrong, for recovery to look at
+        int currToken = peek(0);
+        if (!isSymbol(currToken, symbol)){
+            throw error(currToken, message);
         }
+        emit(advance());
     }
 
-    private void compileVariableOrIndexing(){
-        Matcher match;
-        Token currToken;
-        boolean varNameFound = false;
-        boolean openIndex = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // Variable Name
-            if (match.group("type").equals("identifier")){
-
-                if (varNameFound){
-                    throw new RuntimeException("Duplicate name");
-                }
+    private void expectIdentifier(String message){
+        // Left unconsumed if it is wrong, for recovery to look at
+        int currToken = peek(0);
+        if (tokens.getTokenType(currToken) != TokenType.IDENTIFIER){
+            throw error(currToken, message);
+        }
+        emit(advance());
+    }
 
-                compiledTokens.add(currToken);
-                varNameFound = true;
-                continue;
-            }
+    private boolean isOperator(int index){
+        if (tokens.getTokenType(index) != TokenType.SYMBOL){
+            return false;
+        }
+        switch (tokens.getSymbol(index)){
+            case '+':
+            case '-':
+            case '*':
+            case '/':
+            case '&':
+            case '|':
+            case '<':
+            case '>':
+            case '=':
+                return true;
+            default:
+                return false;
+        }
+    }
 
-            // [expression]
-            // [
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("[")
-                ){
+    private void emit(int index){
+        listener.terminal(tokens, index);
+    }
 
-                if (!varNameFound){
-                    throw new RuntimeException("No variable to index");
-                }
-                if (openIndex){
-                    throw new RuntimeException("Hanging [");
-                }
+    private boolean isKeyword(int index, KeywordType keyword){
+        return tokens.isKeyword(index, keyword);
+    }
 
-                compiledTokens.add(currToken);
-                openIndex = true;
-            }
+    private boolean isSymbol(int index, char symbol){
+        return tokens.isSymbol(index, symbol);
+    }
 
-            // expression]
-            if (openIndex){
+    // Keywords and identifiers can both name a type
+    private boolean isTypeName(int index){
+        return tokens.getTokenType(index) == TokenType.KEYWORD |
+            tokens.getTokenType(index) == TokenType.IDENTIFIER;
+    }
 
-                if (!varNameFound){
-                    throw new RuntimeException("No variable to index");
+    private boolean isKnownType(int index){
+        switch (tokens.getTokenType(index)){
+            case KEYWORD:
+                return types.contains(valueOf(index));
+            case IDENTIFIER:
+                int id = tokens.getId(index);
+                if (knownTypeIds.get(id)){
+                    return true;
+                }
+                if (types.contains(tokens.getText(index))){
+                    knownTypeIds.set(id);
+                    return true;
                 }
+                return false;
+            default:
+                return false;
+        }
+    }
 
-                compileExpression();
-                compilationPointer--;
+    // The token's value as it reads in the source, for type lookups and
+    // error messages
+    private String valueOf(int index){
+        switch (tokens.getTokenType(index)){
+            case KEYWORD:
+                return tokens.getKeyword(index).toString();
+            case SYMBOL:
+                return String.valueOf(tokens.getSymbol(index));
+            case INT_CONST:
+                return String.valueOf(tokens.getIntVal(index));
+            default:
+                return tokens.getText(index);
+        }
+    }
 
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
+    // Bytes allocated by subroutine workers on threads other than the one
+    // that ran this engine, which the thread's own allocation counter
+    // misses. While it waits for its workers that thread may run some of
+    // them itself (those are in its own counter, not here) or, in a
+    // shared pool, a worker of another engine, which is then counted by
+    // both.
+    public long getWorkerAllocatedBytes(){
+        return workerAllocatedBytes;
+    }
 
-                if (
-                    !match.group("type").equals("symbol") |
-                    !match.group("value").equals("]")
-                    ){
-                        throw new RuntimeException("Hanging [");
-                } else {
-                    compiledTokens.add(currToken);
-                    compilationPointer++;
-                    openIndex = false;
-                }
+    public List<Token> getTokens(){
+        if (collector == null){
+            throw new IllegalStateException(
+                "The output was streamed to a ParseListener"
+            );
+        }
+        return collector.getTokens();
+    }
+}
 
-                break;
-            }
+enum NonTerminal{
+    CLASS, classVarDec,
+    subroutineDec, parameterList, subroutineBody, varDec,
+    statements, whileStatement, ifStatement, returnStatement,
+    letStatement, doStatement,
+    expression, term, expressionList;
 
-            if (varNameFound){
-                break;
-            }
+    @Override
+    public String toString(){
+        if (this.name().equals("CLASS")){
+            return "class";
         }
+        return this.name();
     }
+}
 
-    private void compileWrappedExpression(){
-        Matcher match;
-        Token currToken;
-        boolean openPar = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // (
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("(")
-                ){
-                    if (openPar){
-                        throw new RuntimeException("Hanging (");
-                    }
-                    openPar = true;
-                    compiledTokens.add(currToken);
-            }
+// An error at offset (-1 if unknown) in the source, found by the parser
+// or by a listener such as the code generator
+class ParseError extends RuntimeException {
 
-            // expression
-            if(openPar){
-                compileExpression();
-                compilationPointer--;
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
+    private static final long serialVersionUID = 1L;
 
-                // )
-                if (
-                    match.group("type").equals("symbol") &
-                    match.group("value").equals(")")
-                    ){
-                        if (!openPar){
-                            throw new RuntimeException("Hanging )");
-                        }
-                        compiledTokens.add(currToken);
-                        break;
-                }
-            }
-        }
+    int offset;
+    // Raised at the end of the file, where there is nothing to recover to
+    boolean atEnd;
+
+    ParseError(int offset, String message){
+        super(message);
+        this.offset = offset;
     }
+}
 
-    private void compileWrappedStatements(){
-        Matcher match;
-        Token currToken;
-        boolean openCurl = false;
-        while (compilationPointer < numTokens){
-            currToken = tokens.get(compilationPointer++);
-            match = getMatch(currToken);
-
-            // {
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("{")
-                ){
-                    if (openCurl){
-                        throw new RuntimeException("Hanging {");
-                    }
-                    openCurl = true;
-                    compiledTokens.add(currToken);
-            }
+// Sits between the engine and its listener. When the listener throws,
+// e.g. the code generator on an undefined variable, the error is reported
+// and parsing carries on: the listener is restarted at the innermost open
+// statements, subroutine or class (whichever the error was in) and gets
+// no events until the parse is back at that depth, so every later
+// statement and subroutine is still checked. The engine does the same on
+// a syntax error through recover. A listener that cannot restart gets
+// nothing more once anything has gone wrong.
+class GuardedListener implements ParseListener {
+
+    private ParseListener listener;
+    private JackTokenizer tokenizer;
+    // The non-terminals open in the parse
+    private NonTerminal[] open = new NonTerminal[32];
+    private int depth;
+    // How many of them the listener has open, while it waits for the
+    // parse to get back to it; NONE while they are in step
+    private static final int NONE = Integer.MAX_VALUE;
+    private int listenerDepth = NONE;
+    private boolean stopped;
+    private int lastOffset = -1;
+
+    GuardedListener(ParseListener listener, JackTokenizer tokenizer){
+        this.listener = listener;
+        this.tokenizer = tokenizer;
+    }
+
+    public ParseListener getListener(){
+        return listener;
+    }
 
+    public int getDepth(){
+        return depth;
+    }
 
-            // statements
-            if(openCurl){
-                compileStatements();
-                currToken = tokens.get(compilationPointer++);
-                match = getMatch(currToken);
+    public void startNonTerminal(NonTerminal nonTerminal){
+        boolean inStep = depth <= listenerDepth;
+        if (depth == open.length){
+            open = Arrays.copyOf(open, depth * 2);
+        }
+        open[depth++] = nonTerminal;
+        if (inStep && !stopped){
+            listenerDepth = NONE;
+            try {
+                listener.startNonTerminal(nonTerminal);
+            } catch (RuntimeException e){
+                fail(e);
             }
+        }
+    }
 
-            // }
-            if (
-                match.group("type").equals("symbol") &
-                match.group("value").equals("}")
-                ){
-                    if (!openCurl){
-                        throw new RuntimeException("Hanging }");
-                    }
-                    compiledTokens.add(currToken);
-                    break;
+    public void endNonTerminal(NonTerminal nonTerminal){
+        depth--;
+        if (depth < listenerDepth && !stopped){
+            listenerDepth = NONE;
+            try {
+                listener.endNonTerminal(nonTerminal);
+            } catch (RuntimeException e){
+                fail(e);
             }
+        }
+    }
 
+    public void terminal(TokenBuffer tokens, int index){
+        lastOffset = tokens.getOffset(index);
+        if (depth <= listenerDepth && !stopped){
+            listenerDepth = NONE;
+            try {
+                listener.terminal(tokens, index);
+            } catch (RuntimeException e){
+                fail(e);
+            }
         }
     }
 
-    private Matcher getMatch(Token currToken){
-        Matcher match = xmlPattern.matcher(currToken.toString());
-        if(!match.matches()){
-            throw new RuntimeException(
-                "Invalid XML " + currToken.toString()
-            );
+    // After a syntax error: the parse resumes with depth non-terminals
+    // open, those it had when the failed construct started
+    public void recover(int depth){
+        this.depth = depth;
+        if (depth < listenerDepth){
+            resumeAt(depth);
         }
-        return match;
     }
 
+    // The same, replayed, e.g. by SyntaxTree.accept
+    public boolean restart(int depth){
+        recover(depth);
+        return true;
+    }
 
-    public List<Token> getTokens(){
-        return this.compiledTokens;
+    // The listener failed; reported at the offset the error carries, or
+    // else at the last token seen
+    private void fail(RuntimeException e){
+        tokenizer.report(
+            e instanceof ParseError ? ((ParseError) e).offset : lastOffset,
+            e.getMessage()
+        );
+        int keep = depth;
+        while (keep > 0 && !isBoundary(open[keep - 1])){
+            keep--;
+        }
+        resumeAt(keep);
+    }
+
+    private void resumeAt(int depth){
+        listenerDepth = depth;
+        if (!stopped && !listener.restart(depth)){
+            stopped = true;
+        }
+    }
+
+    // Non-terminals whose children can be checked independently
+    private static boolean isBoundary(NonTerminal nonTerminal){
+        switch (nonTerminal){
+            case CLASS:
+            case subroutineDec:
+            case subroutineBody:
+            case statements:
+                return true;
+            default:
+                return false;
+        }
     }
 }
 
-enum NonTerminal{
-    CLASS, classVarDec,
-    subroutineDec, parameterList, subroutineBody, varDec,
-    statements, whileStatement, ifStatement, returnStatement,
-    letStatement, doStatement,
-    expression, term, expressionList;
+// Keeps the events a worker's engine produces, to be replayed to the real
+// listener later. One int per event: a token index for a terminal, or a
+// negative code for the start or end of a non-terminal.
+class EventRecorder implements ParseListener {
 
-    @Override
-    public String toString(){
-        if (this.name().equals("CLASS")){
-            return "class";
+    private static final NonTerminal[] nonTerminals = NonTerminal.values();
+
+    private int[] events = new int[256];
+    private int count;
+
+    public void startNonTerminal(NonTerminal nonTerminal){
+        add(-1 - 2 * nonTerminal.ordinal());
+    }
+
+    public void endNonTerminal(NonTerminal nonTerminal){
+        add(-2 - 2 * nonTerminal.ordinal());
+    }
+
+    public void terminal(TokenBuffer tokens, int index){
+        add(index);
+    }
+
+    // tokens: the buffer the indexes were recorded from
+    public void replay(ParseListener listener, TokenBuffer tokens){
+        for (int i = 0; i < count; i++){
+            int event = events[i];
+            if (event >= 0){
+                listener.terminal(tokens, event);
+            } else if ((event & 1) != 0){ // -1, -3...
+                listener.startNonTerminal(nonTerminals[(-1 - event) / 2]);
+            } else {
+                listener.endNonTerminal(nonTerminals[(-2 - event) / 2]);
+            }
         }
-        return this.name();
+    }
+
+    private void add(int event){
+        if (count == events.length){
+            events = Arrays.copyOf(events, count * 2);
+        }
+        events[count++] = event;
     }
 }
@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+// Compiled outputs kept on disk between runs. An entry is keyed by the
+// SHA-256 of the compiler version, the options that change the output
+// and the source bytes, so an unchanged file costs one hash and one copy.
+// The other classes of the batch are not in the key: an entry lists the
+// ones its file named as types and is only used while they all exist, so
+// adding or removing a file only recompiles the files that named it.
+// Entries are written to a temporary file and moved into place, so
+// concurrent compilations never see half an entry.
+//
+// An entry is two lines, then the output:
+//
+//   Board Cell        the classes named, sorted
+//    (rule=3 ...)     what the compilation added to its report line
+public class CompileCache {
+
+    // Bump whenever a change to the compiler alters its output, so entries
+    // written by older versions stop matching
+    public static final String VERSION = "2";
+
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    private File directory;
+    private String options;
+
+    // options: whatever besides the source decides the output, e.g.
+    // "vm no-peephole"; see CompilerOptions.getOutputOptions
+    public CompileCache(String directory, String options){
+        this.directory = new File(directory);
+        this.options = options;
+        if (!this.directory.isDirectory() && !this.directory.mkdirs()){
+            throw new RuntimeException(
+                "The cache directory (\"" + directory + "\") could not be created."
+            );
+        }
+    }
+
+    public String key(byte[] source){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){ // Every JVM has SHA-256
+            throw new RuntimeException(e);
+        }
+        digest.update(VERSION.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        byte[] hash = digest.digest(source);
+
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++){
+            hex[2 * i] = hexDigits[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = hexDigits[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    // Copies the entry for key to outputPath and returns the report saved
+    // with it; null if there is none, or if it named a class that options
+    // no longer has
+    public String restore(String key, String outputPath,
+            CompilerOptions options) throws IOException {
+        Path entry = entry(key);
+        if (!Files.isRegularFile(entry)){
+            return null;
+        }
+        byte[] bytes = Files.readAllBytes(entry);
+        int names = lineEnd(bytes, 0);
+        int report = names < 0 ? -1 : lineEnd(bytes, names + 1);
+        if (report < 0){
+            return null; // Not an entry this version wrote
+        }
+        String classNames = new String(bytes, 0, names, StandardCharsets.UTF_8);
+        for (String className : classNames.split(" ")){
+            if (!className.isEmpty() && !options.hasClassName(className)){
+                return null;
+            }
+        }
+        try (OutputStream output = new FileOutputStream(outputPath)){
+            output.write(bytes, report + 1, bytes.length - report - 1);
+        }
+        return new String(bytes, names + 1, report - names - 1,
+            StandardCharsets.UTF_8);
+    }
+
+    // Saves the freshly compiled outputPath as the entry for key, with
+    // the classes it named and its report
+    public void store(String key, String outputPath,
+            Collection<String> classNames, String report) throws IOException {
+        List<String> sorted = new ArrayList<String>(classNames);
+        Collections.sort(sorted);
+        String header = String.join(" ", sorted) + "\n" + report + "\n";
+        Path temp = Files.createTempFile(directory.toPath(), key, ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(temp)){
+                output.write(header.getBytes(StandardCharsets.UTF_8));
+                Files.copy(new File(outputPath).toPath(), output);
+            }
+            Files.move(temp, entry(key), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // The index of the first newline at or after start, or -1
+    private static int lineEnd(byte[] bytes, int start){
+        for (int i = start; i < bytes.length; i++){
+            if (bytes[i] == '\n'){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Path entry(String key){
+        return new File(directory, key).toPath();
+    }
+}
@@ -0,0 +1,248 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Where the time and memory of a batch go, per file and in total, as
+// collected under --stats. Each file is timed through four phases on the
+// thread that compiles it:
+//
+//   read   the source bytes off disk, and the cache lookup of --cache
+//   lex    the whole file into a TokenBuffer
+//   parse  the tokens into a SyntaxTree
+//   write  the tree to VM code (or XML) and the output file
+//
+// Those are the phases of JackAnalyzer.compileTimed, which only --stats
+// runs: without it a file is lexed, parsed and written in one streaming
+// pass, and costs less memory. The summary says so. A file restored from
+// the cache is counted with its read alone, and one that failed up to
+// where it did.
+//
+// Allocation is read from the JVM's per-thread counters, so it counts
+// everything a phase allocated on that thread and nothing from other
+// files. The one exception is --parallel-subroutines, whose workers run on
+// other threads: what they allocate is added to parse (see
+// CompilationEngine.getWorkerAllocatedBytes). Files are added from many
+// threads at once.
+public class CompileStats {
+
+    public static final int READ = 0;
+    public static final int LEX = 1;
+    public static final int PARSE = 2;
+    public static final int WRITE = 3;
+    static final String[] phaseNames = { "read", "lex", "parse", "write" };
+
+    private List<FileStats> files = new ArrayList<FileStats>();
+    private long wallNanos;
+
+    public synchronized void add(FileStats file){
+        files.add(file);
+    }
+
+    public synchronized List<FileStats> getFiles(){
+        return new ArrayList<FileStats>(files);
+    }
+
+    // The time the whole batch took, files overlapping
+    public void setWallNanos(long wallNanos){
+        this.wallNanos = wallNanos;
+    }
+
+    // The per-file total time at or below which percent of the files
+    // finished (nearest rank); 0 without files
+    public synchronized long percentile(double percent){
+        if (files.isEmpty()){
+            return 0;
+        }
+        long[] totals = new long[files.size()];
+        for (int i = 0; i < totals.length; i++){
+            totals[i] = files.get(i).getTotalNanos();
+        }
+        Arrays.sort(totals);
+        int rank = (int) Math.ceil(percent / 100 * totals.length);
+        return totals[Math.max(rank, 1) - 1];
+    }
+
+    // e.g.
+    //   total (12 files, 3 cached, wall 40.10 ms): read 1.20 ms, lex ...
+    //   latency per file: p50 2.10 ms, p95 6.30 ms, p99 7.00 ms
+    //   (phases timed apart: lexed whole, parsed to a tree, written from
+    //   it; a compile without --stats streams them in one pass)
+    public synchronized String summary(){
+        if (files.isEmpty()){
+            // e.g. no file could be read
+            return "total: no files compiled";
+        }
+        FileStats total = new FileStats("total");
+        int cached = 0;
+        int failed = 0;
+        for (FileStats file : files){
+            total.addAll(file);
+            cached += file.isCached() ? 1 : 0;
+            failed += file.isFailed() ? 1 : 0;
+        }
+        StringBuilder summary = new StringBuilder();
+        summary.append("total (").append(files.size()).append(" files");
+        if (cached > 0){
+            summary.append(", ").append(cached).append(" cached");
+        }
+        if (failed > 0){
+            summary.append(", ").append(failed).append(" failed");
+        }
+        summary.append(", wall ").append(millis(wallNanos)).append("): ");
+        total.appendPhases(summary, wallNanos);
+        summary.append("\nlatency per file: p50 ").append(millis(percentile(50)))
+            .append(", p95 ").append(millis(percentile(95)))
+            .append(", p99 ").append(millis(percentile(99)));
+        summary.append("\n(phases timed apart: lexed whole, parsed to a tree," +
+            " written from it; a compile without --stats streams them in one" +
+            " pass)");
+        return summary.toString();
+    }
+
+    // Bytes allocated by the calling thread so far
+    public static long allocatedBytes(){
+        return ((com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    static String millis(long nanos){
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+}
+
+// The numbers for one file. Phases are timed back to back: end(phase)
+// charges everything since the previous end (or since construction) to
+// phase.
+class FileStats {
+
+    private String file;
+    private long[] nanos = new long[CompileStats.phaseNames.length];
+    private long[] allocated = new long[CompileStats.phaseNames.length];
+    private long bytes;
+    private long tokens;
+    private long nodes;
+    private boolean cached;
+    private boolean failed;
+
+    private long markNanos;
+    private long markAllocated;
+
+    FileStats(String file){
+        this.file = file;
+        this.markNanos = System.nanoTime();
+        this.markAllocated = CompileStats.allocatedBytes();
+    }
+
+    public void end(int phase){
+        long now = System.nanoTime();
+        long allocatedNow = CompileStats.allocatedBytes();
+        nanos[phase] += now - markNanos;
+        allocated[phase] += allocatedNow - markAllocated;
+        markNanos = now;
+        markAllocated = allocatedNow;
+    }
+
+    // Allocated on other threads for phase, e.g. by parse workers
+    public void addAllocated(int phase, long bytes){
+        allocated[phase] += bytes;
+    }
+
+    public void setBytes(long bytes){
+        this.bytes = bytes;
+    }
+
+    public void setTokens(long tokens){
+        this.tokens = tokens;
+    }
+
+    public void setNodes(long nodes){
+        this.nodes = nodes;
+    }
+
+    // Restored from the cache, so only read
+    public void setCached(){
+        this.cached = true;
+    }
+
+    // Timed up to an error
+    public void setFailed(){
+        this.failed = true;
+    }
+
+    public String getFile(){
+        return file;
+    }
+
+    public long getNanos(int phase){
+        return nanos[phase];
+    }
+
+    public long getAllocated(int phase){
+        return allocated[phase];
+    }
+
+    public long getTotalNanos(){
+        long total = 0;
+        for (long phase : nanos){
+            total += phase;
+        }
+        return total;
+    }
+
+    public long getBytes(){
+        return bytes;
+    }
+
+    public long getTokens(){
+        return tokens;
+    }
+
+    public long getNodes(){
+        return nodes;
+    }
+
+    public boolean isCached(){
+        return cached;
+    }
+
+    public boolean isFailed(){
+        return failed;
+    }
+
+    void addAll(FileStats other){
+        for (int i = 0; i < nanos.length; i++){
+            nanos[i] += other.nanos[i];
+            allocated[i] += other.allocated[i];
+        }
+        bytes += other.bytes;
+        tokens += other.tokens;
+        nodes += other.nodes;
+    }
+
+    // e.g. "read 0.05 ms, lex 0.40 ms, parse 0.90 ms, write 0.70 ms;
+    // 1200 tokens, 3100 nodes, 588235 tokens/s; allocated read 4 KB, ..."
+    @Override
+    public String toString(){
+        StringBuilder text = new StringBuilder();
+        appendPhases(text, getTotalNanos());
+        return text.toString();
+    }
+
+    // Throughput is taken over elapsedNanos
+    void appendPhases(StringBuilder text, long elapsedNanos){
+        String[] names = CompileStats.phaseNames;
+        for (int i = 0; i < names.length; i++){
+            text.append(i > 0 ? ", " : "").append(names[i]).append(' ')
+                .append(CompileStats.millis(nanos[i]));
+        }
+        text.append("; ").append(tokens).append(" tokens, ")
+            .append(nodes).append(" nodes, ")
+            .append(elapsedNanos > 0 ? tokens * 1_000_000_000L / elapsedNanos : 0)
+            .append(" tokens/s; allocated");
+        for (int i = 0; i < names.length; i++){
+            text.append(i > 0 ? ", " : " ").append(names[i]).append(' ')
+                .append((allocated[i] + 1023) / 1024).append(" KB");
+        }
+    }
+}
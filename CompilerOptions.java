@@ -0,0 +1,131 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// How a batch is compiled, as set on the command line (or a JackServer
+// request). One instance is shared by every file of the batch and is not
+// changed once the batch starts.
+public class CompilerOptions {
+
+    private boolean useScanner;
+    private boolean writeXml;
+    private boolean buildTree;
+    private boolean peephole = true;
+    private boolean peepholeStats;
+    private boolean parallelSubroutines;
+    private String cacheDirectory;
+    private SymbolPool sharedSymbols;
+    private CompileStats stats;
+    // Accepted as types by every compilation, besides the OS classes
+    private Set<String> classNames = new HashSet<String>();
+
+    public static final String USAGE =
+        "[--xml] [--tree] [--no-peephole] [--peephole-stats] " +
+        "[--cache <directory>] [--scanner] [--shared-symbols] " +
+        "[--parallel-subroutines] [--stats]";
+
+    // Reads the options in args; everything else is added to paths
+    public static CompilerOptions parse(String[] args, List<String> paths){
+        CompilerOptions options = new CompilerOptions();
+        for (int i = 0; i < args.length; i++){
+            String arg = args[i];
+            if (arg.equals("--xml")){
+                // Write the parse tree as XML instead of VM code
+                options.writeXml = true;
+            } else if (arg.equals("--tree")){
+                // Build a SyntaxTree first and write the XML from it
+                options.writeXml = true;
+                options.buildTree = true;
+            } else if (arg.equals("--no-peephole")){
+                // Write the generator's code as is, e.g. to diff against
+                options.peephole = false;
+            } else if (arg.equals("--peephole-stats")){
+                // Report how often each peephole rule fired
+                options.peepholeStats = true;
+            } else if (arg.equals("--cache") && i + 1 < args.length){
+                // Reuse the output of files compiled before, unchanged
+                options.cacheDirectory = args[++i];
+            } else if (arg.equals("--scanner")){
+                options.useScanner = true;
+            } else if (arg.equals("--shared-symbols")){
+                // One pool for the whole batch instead of one per file
+                options.sharedSymbols = new SymbolPool();
+            } else if (arg.equals("--parallel-subroutines")){
+                // Parse the subroutines of each class on several threads
+                options.parallelSubroutines = true;
+            } else if (arg.equals("--stats")){
+                // Time each phase of each file and report the numbers. The
+                // phases then run one after the other instead of streaming,
+                // see CompileStats.
+                options.stats = new CompileStats();
+            } else {
+                paths.add(arg);
+            }
+        }
+        return options;
+    }
+
+    public boolean useScanner(){
+        return useScanner;
+    }
+
+    public boolean writeXml(){
+        return writeXml;
+    }
+
+    public boolean buildTree(){
+        return buildTree;
+    }
+
+    public boolean peephole(){
+        return peephole;
+    }
+
+    public boolean peepholeStats(){
+        return peepholeStats;
+    }
+
+    public boolean parallelSubroutines(){
+        return parallelSubroutines;
+    }
+
+    // Null without --cache
+    public String getCacheDirectory(){
+        return cacheDirectory;
+    }
+
+    // Null unless the batch shares one pool
+    public SymbolPool getSharedSymbols(){
+        return sharedSymbols;
+    }
+
+    // Null without --stats
+    public CompileStats getStats(){
+        return stats;
+    }
+
+    public String getOutputExtension(){
+        return writeXml ? ".xml" : ".vm";
+    }
+
+    // The options that change the output or the report, for CompileCache
+    // keys. The class names are not among them: each entry records which
+    // of them its file used, see CompileCache.restore.
+    public String getOutputOptions(){
+        return (writeXml ? "xml" : "vm") + (peephole ? "" : " no-peephole") +
+            (peephole && peepholeStats ? " peephole-stats" : "");
+    }
+
+    public void addClassName(String className){
+        classNames.add(className);
+    }
+
+    public boolean hasClassName(String className){
+        return classNames.contains(className);
+    }
+
+    // A fresh registry for one compilation
+    public TypeRegistry newTypeRegistry(){
+        return new TypeRegistry(classNames);
+    }
+}
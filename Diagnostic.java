@@ -0,0 +1,88 @@
+import java.util.List;
+
+// One problem found while compiling a file, reported as
+//
+//   path:line:column: error: message
+//
+// the form compilers conventionally use, so build tools and editors can
+// pick it up. line and column count from 1; both are 0 when the token has
+// no position in the source (tokens replayed from a list), and only the
+// path is shown.
+public class Diagnostic {
+
+    private String file;
+    private int offset;
+    private int line;
+    private int column;
+    private String message;
+
+    public Diagnostic(String file, int offset, int line, int column,
+            String message){
+        this.file = file;
+        this.offset = offset;
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    public String getFile(){
+        return file;
+    }
+
+    // Characters from the start of the source, or -1
+    public int getOffset(){
+        return offset;
+    }
+
+    public int getLine(){
+        return line;
+    }
+
+    public int getColumn(){
+        return column;
+    }
+
+    public String getMessage(){
+        return message;
+    }
+
+    @Override
+    public String toString(){
+        if (line == 0){
+            return file + ": error: " + message;
+        }
+        return file + ":" + line + ":" + column + ": error: " + message;
+    }
+}
+
+// Thrown once a compilation is over if anything was reported; the message
+// holds every diagnostic, one per line
+class CompileError extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private List<Diagnostic> diagnostics;
+
+    CompileError(List<Diagnostic> diagnostics, int dropped){
+        super(format(diagnostics, dropped));
+        this.diagnostics = diagnostics;
+    }
+
+    public List<Diagnostic> getDiagnostics(){
+        return diagnostics;
+    }
+
+    private static String format(List<Diagnostic> diagnostics, int dropped){
+        StringBuilder message = new StringBuilder();
+        for (Diagnostic diagnostic : diagnostics){
+            if (message.length() > 0){
+                message.append('\n');
+            }
+            message.append(diagnostic);
+        }
+        if (dropped > 0){
+            message.append('\n').append(dropped).append(" more errors not shown");
+        }
+        return message.toString();
+    }
+}
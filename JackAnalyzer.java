@@ -1,21 +1,369 @@
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class JackAnalyzer {
 
     public static void main(String[] args){
+        run(args, System.out);
+    }
+
+    // Runs one command line, reporting to out. JackServer calls this for
+    // every compile request, in a JVM that stays warm between them.
+    public static void run(String[] args, PrintStream out){
+
+        if (args.length == 0){
+            out.println(
+                "Usage: java JackAnalyzer " + CompilerOptions.USAGE +
+                " <file.jack|directory> ..."
+            );
+            return;
+        }
+
+        List<String> paths = new ArrayList<String>();
+        CompilerOptions options = CompilerOptions.parse(args, paths);
+        List<File> sources = collectSources(paths, out);
+        if (sources.isEmpty()){
+            out.println("No .jack files found.");
+            return;
+        }
+        // Classes of the batch may name each other as types
+        for (File source : sources){
+            options.addClassName(className(source));
+        }
+
+        CompileCache compileCache = null;
+        if (options.getCacheDirectory() != null){
+            try {
+                compileCache = new CompileCache(
+                    options.getCacheDirectory(), options.getOutputOptions()
+                );
+            } catch (RuntimeException e){
+                out.println(e.getMessage());
+                return;
+            }
+        }
+
+        // One task per file, spread over a work-stealing pool that is as
+        // wide as the machine. Results are reported in input order. The
+        // subroutine tasks of --parallel-subroutines are forked into the
+        // same pool, so it is not narrowed to the number of files then:
+        // one large class must still get every core.
+        int cores = Runtime.getRuntime().availableProcessors();
+        ForkJoinPool pool = new ForkJoinPool(
+            options.parallelSubroutines() ? cores : Math.min(sources.size(), cores)
+        );
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        final CompileCache cache = compileCache;
+        long start = System.nanoTime();
+        for (File source : sources){
+            tasks.add(() -> {
+                try {
+                    return compileFile(source, options, cache);
+                } catch (RuntimeException e){
+                    return e.getMessage();
+                }
+            });
+        }
+
+        try {
+            for (Future<String> result : pool.invokeAll(tasks)){
+                out.println(result.get());
+            }
+            if (options.getStats() != null){
+                options.getStats().setWallNanos(System.nanoTime() - start);
+                out.println(options.getStats().summary());
+            }
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e){ // An unexpected error
+            e.getCause().printStackTrace(out);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Expands the command line into the list of .jack files to compile.
+    // Directories contribute their .jack files sorted by name so the order
+    // (and therefore the report) is the same on every run.
+    public static List<File> collectSources(
+            List<String> args, PrintStream out){
+        List<File> sources = new ArrayList<File>();
+        for (String arg : args){
+            File file = new File(arg);
+            if (file.isDirectory()){
+                File[] children = file.listFiles(
+                    (dir, name) -> name.endsWith(".jack")
+                );
+                if (children == null) continue;
+                Arrays.sort(children);
+                sources.addAll(Arrays.asList(children));
+            } else if (file.isFile()){
+                sources.add(file);
+            } else {
+                out.println(
+                    "The provided input file (" + arg + ") was not found."
+                );
+            }
+        }
+        return sources;
+    }
+
+    // Foo.jack -> Foo
+    public static String className(File source){
+        String name = source.getName();
+        return name.endsWith(".jack") ?
+            name.substring(0, name.length() - ".jack".length()) : name;
+    }
+
+    // Foo.jack -> Foo.vm (or Foo.xml)
+    public static String outputPath(File source, String extension){
+        String path = source.getPath();
+        if (path.endsWith(".jack")){
+            path = path.substring(0, path.length() - ".jack".length());
+        }
+        return path + extension;
+    }
+
+    private static String compileFile(
+            File source, CompilerOptions options, CompileCache cache){
+        String outputPath = outputPath(source, options.getOutputExtension());
+        FileStats stats = options.getStats() != null ?
+            new FileStats(source.getPath()) : null;
+        // Read up front when hashed or timed; the tokenizer reads it
+        // itself otherwise
+        byte[] bytes = null;
+        String key = null;
+        if (cache != null || stats != null){
+            try {
+                bytes = Files.readAllBytes(source.toPath());
+            } catch (IOException e){
+                throw new RuntimeException(
+                    "The provided input file (" + source.getPath() +
+                    ") was not found."
+                );
+            }
+        }
+        String cached = null;
+        if (cache != null){
+            // Hash and compile the same bytes, even if the file changes
+            // in between
+            try {
+                key = cache.key(bytes);
+                cached = cache.restore(key, outputPath, options);
+            } catch (IOException e){
+                throw new RuntimeException(
+                    source.getPath() + ": cache: " + e.getMessage(), e
+                );
+            }
+        }
+        if (stats != null){
+            // Reading includes the hash and lookup of --cache
+            stats.end(CompileStats.READ);
+            stats.setBytes(bytes.length);
+        }
+        if (cached != null){
+            String report = " (cached)" + cached;
+            if (stats != null){
+                // Counted with nothing but its read
+                stats.setCached();
+                options.getStats().add(stats);
+                report += "\n    " + stats;
+            }
+            return source.getPath() + " -> " + outputPath + report;
+        }
+
+        // Records which of the batch's classes the file names, for cache
+        TypeRegistry types = options.newTypeRegistry();
+        String report;
+        try {
+            if (stats != null){
+                report = compileTimed(
+                    source, bytes, outputPath, options, types, stats
+                );
+            } else {
+                report = writeOutput(tokenizer(source, bytes, options), null,
+                    outputPath, options, types);
+            }
+            if (cache != null){
+                cache.store(key, outputPath, types.getUsedClassNames(), report);
+            }
+            if (stats != null){
+                report += "\n    " + stats;
+            }
+        } catch (FileNotFoundException e){
+            throw new RuntimeException(
+                "The provided output file (\"" + outputPath +
+                "\") could not be created."
+            );
+        } catch (IOException e){
+            // The output is fine; only saving it for next time failed
+            throw new RuntimeException(
+                source.getPath() + ": cache: " + e.getMessage(), e
+            );
+        } catch (CompileError e){
+            // Don't leave half a file behind; the diagnostics already
+            // name the file
+            new File(outputPath).delete();
+            throw e;
+        } catch (RuntimeException e){
+            new File(outputPath).delete();
+            throw new RuntimeException(
+                source.getPath() + ": " + e.getMessage(), e
+            );
+        }
+        return source.getPath() + " -> " + outputPath + report;
+    }
 
-        String filePath = "Square\\Square.jack";
-        JackTokenizer tokenizer = new JackTokenizer(filePath);
+    // Compiles the file for --stats. The phases run one after the other,
+    // so each can be timed: the whole file is lexed, parsed into a tree,
+    // and the tree is written. The output and the diagnostics are the
+    // same: a class with syntax errors is still written, from a tree that
+    // keeps where the parse recovered, so the code generator checks it as
+    // it would while streaming. The file is added to stats even if it
+    // fails, timed up to where it did.
+    private static String compileTimed(File source, byte[] bytes,
+            String outputPath, CompilerOptions options, TypeRegistry types,
+            FileStats stats) throws FileNotFoundException {
+        int phase = CompileStats.LEX;
+        try {
+            JackTokenizer tokenizer = tokenizer(source, bytes, options);
+            stats.setTokens(tokenizer.readAll().size());
+            stats.end(CompileStats.LEX);
+            phase = CompileStats.PARSE;
+            SyntaxTree tree = new SyntaxTree();
+            try {
+                CompilationEngine engine = new CompilationEngine(
+                    tokenizer, tree, types, options.parallelSubroutines()
+                );
+                stats.addAllocated(
+                    CompileStats.PARSE, engine.getWorkerAllocatedBytes()
+                );
+            } catch (CompileError e){
+                // Reported again, with the code generator's, once written
+            }
+            stats.setNodes(tree.size());
+            stats.end(CompileStats.PARSE);
+            phase = CompileStats.WRITE;
+            String report = writeOutput(tokenizer, tree, outputPath, options,
+                types);
+            stats.end(CompileStats.WRITE);
+            return report;
+        } catch (FileNotFoundException | RuntimeException e){
+            stats.end(phase);
+            stats.setFailed();
+            throw e;
+        } finally {
+            options.getStats().add(stats);
+        }
+    }
 
-        CompilationEngine compiler = new CompilationEngine(tokenizer);
-        writeToFile(compiler);
+    // bytes: the source if already read, or null to read it
+    private static JackTokenizer tokenizer(
+            File source, byte[] bytes, CompilerOptions options){
+        JackTokenizer tokenizer = bytes != null ?
+            JackTokenizer.fromBytes(source.getPath(), bytes, options.useScanner()) :
+            new JackTokenizer(source.getPath(), options.useScanner());
+        if (options.getSharedSymbols() != null){
+            tokenizer.setSymbolPool(options.getSharedSymbols());
+        }
+        return tokenizer;
+    }
 
+    // Writes the class to outputPath, from tree if there is one and
+    // otherwise while tokenizer's tokens are parsed. Errors are reported
+    // through tokenizer either way. Returns anything to add to the file's
+    // report line.
+    private static String writeOutput(JackTokenizer tokenizer, SyntaxTree tree,
+            String outputPath, CompilerOptions options, TypeRegistry types)
+            throws FileNotFoundException {
+        if (options.writeXml()){
+            try (XmlWriter writer = new XmlWriter(outputPath)){
+                if (tree != null){
+                    tree.accept(writer);
+                    tokenizer.checkDiagnostics();
+                } else {
+                    writeXml(tokenizer, writer, options, types);
+                }
+            }
+            return "";
+        }
+
+        // VM code is generated while the class is parsed
+        VMWriter writer = options.peephole() ?
+            new PeepholeOptimizer(outputPath) : new VMWriter(outputPath);
+        try {
+            if (tree != null){
+                // Guarded as the engine guards it, so the code generator's
+                // errors are reported with positions and it carries on
+                tree.accept(new GuardedListener(new CodeGenerator(writer),
+                    tokenizer));
+                tokenizer.checkDiagnostics();
+            } else {
+                new CompilationEngine(tokenizer, new CodeGenerator(writer),
+                    types, options.parallelSubroutines());
+            }
+        } finally {
+            writer.close();
+        }
+        if (options.peephole() && options.peepholeStats()){
+            return " (" + ((PeepholeOptimizer) writer).getHitSummary() + ")";
+        }
+        return "";
+    }
+
+    // Compiles a class held in memory, e.g. sent to JackServer, and
+    // returns its VM code or XML
+    public static String compileSource(
+            String name, CharSequence source, CompilerOptions options){
+        JackTokenizer tokenizer = JackTokenizer.fromSource(
+            name, source, options.useScanner()
+        );
+        StringWriter output = new StringWriter();
+        if (options.writeXml()){
+            try (XmlWriter writer = new XmlWriter(output)){
+                writeXml(tokenizer, writer, options, options.newTypeRegistry());
+            }
+        } else {
+            try (VMWriter writer = options.peephole() ?
+                    new PeepholeOptimizer(output) : new VMWriter(output)){
+                new CompilationEngine(tokenizer,
+                    new CodeGenerator(writer), options.newTypeRegistry(),
+                    options.parallelSubroutines());
+            }
+        }
+        return output.toString();
+    }
+
+    // The XML is written while the class is parsed, or from the tree
+    private static void writeXml(JackTokenizer tokenizer, XmlWriter writer,
+            CompilerOptions options, TypeRegistry types){
+        if (options.buildTree()){
+            SyntaxTree syntaxTree = new SyntaxTree();
+            new CompilationEngine(
+                tokenizer, syntaxTree, types, options.parallelSubroutines()
+            );
+            syntaxTree.accept(writer);
+        } else {
+            new CompilationEngine(tokenizer, writer, types,
+                options.parallelSubroutines());
+        }
     }
 
-    public static void writeToFile(CompilationEngine compiler){
+    public static void writeToFile(CompilationEngine compiler, String outputPath){
         try {
-            PrintWriter writer = new PrintWriter("a.xml");
+            PrintWriter writer = new PrintWriter(outputPath);
             // Write all the data from the contents list to the file
             for(Token token : compiler.getTokens()){
                 writer.println(token.toString());
@@ -24,11 +372,13 @@ public class JackAnalyzer {
             writer.close();
         } catch (FileNotFoundException e){
             System.out.println(
-                "The provided output file (\"a.xml\") could not be created."
+                "The provided output file (\"" + outputPath +
+                "\") could not be created."
             );
         } catch (Exception e){ // An unexpected error
             System.out.println(
-                "Something went wrong writing to the output file (\"a.xml\")."
+                "Something went wrong writing to the output file (\"" +
+                outputPath + "\")."
             );
             e.printStackTrace();
         }
@@ -0,0 +1,62 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+// Takes the same arguments as JackAnalyzer but has a running JackServer
+// do the work, so each build step skips JVM startup and JIT warmup.
+// --shutdown stops the server instead.
+public class JackClient {
+
+    public static void main(String[] args){
+        String socketPath = JackServer.DEFAULT_SOCKET;
+        StringBuilder request = new StringBuilder("compile");
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--socket") && i + 1 < args.length){
+                socketPath = args[++i];
+                continue;
+            }
+            if (args[i].equals("--shutdown")){
+                request = new StringBuilder("shutdown");
+                break;
+            }
+            // The server has its own working directory, so paths
+            // (anything that is not an option) are made absolute
+            String arg = args[i].startsWith("--") ?
+                args[i] : new File(args[i]).getAbsolutePath();
+            request.append('\t').append(arg);
+        }
+
+        try (SocketChannel channel =
+                SocketChannel.open(StandardProtocolFamily.UNIX)){
+            channel.connect(UnixDomainSocketAddress.of(socketPath));
+            PrintStream out = new PrintStream(
+                Channels.newOutputStream(channel), false, StandardCharsets.UTF_8
+            );
+            out.println(request);
+            out.flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                Channels.newInputStream(channel), StandardCharsets.UTF_8
+            ));
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("end")){
+                System.out.println(line);
+            }
+            out.println("quit");
+            out.flush();
+        } catch (IOException e){
+            System.out.println(
+                "No compile server at " + socketPath + " (" + e.getMessage() +
+                "); start one with: java JackServer --socket " + socketPath
+            );
+            System.exit(1);
+        }
+    }
+}
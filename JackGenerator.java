@@ -0,0 +1,291 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+// Writes random but valid Jack classes of a chosen size and shape, to see
+// how the compiler scales far beyond the bundled programs. The same seed
+// and settings always give the same class.
+//
+// Usage: java JackGenerator [--shape name] [--scale n] [--seed n]
+//                           [--classes n] <output directory>
+public class JackGenerator {
+
+    public static final String[] shapes = {
+        "balanced", "wide", "deep", "chains", "strings", "comments"
+    };
+
+    private static final char[] operators = { '+', '-', '*', '/', '&', '|', '<', '>', '=' };
+    private static final String[] variables = { "a", "b", "x", "y", "z", "f0", "f1", "f2" };
+
+    private Random random;
+
+    // Methods per class, and statements per method body
+    private int subroutines = 20;
+    private int statements = 20;
+    // Parentheses nesting of generated expressions
+    private int depth = 3;
+    // Branches of each if/else-if chain, and how deep loops and ifs nest
+    private int chain = 3;
+    private int nesting = 2;
+    private int stringLength = 16;
+    // Lines of the comment block before each method
+    private int commentLines = 2;
+
+    public JackGenerator(long seed){
+        this.random = new Random(seed);
+    }
+
+    // A generator for one of the named shapes. scale multiplies the
+    // dimension the shape stresses, so doubling it should double the size
+    // of the class along that dimension.
+    public static JackGenerator shape(String shape, long seed, int scale){
+        JackGenerator generator = new JackGenerator(seed);
+        switch (shape){
+            case "balanced":
+                generator.subroutines = 20 * scale;
+                break;
+            case "wide":
+                generator.subroutines = 200 * scale;
+                generator.statements = 5;
+                break;
+            case "deep":
+                generator.subroutines = 4;
+                generator.statements = 4;
+                generator.depth = 40 * scale;
+                break;
+            case "chains":
+                generator.subroutines = 4;
+                generator.statements = 20;
+                generator.chain = 20 * scale;
+                generator.nesting = 1;
+                break;
+            case "strings":
+                generator.subroutines = 10;
+                generator.statements = 10;
+                generator.stringLength = 2000 * scale;
+                break;
+            case "comments":
+                generator.subroutines = 10;
+                generator.statements = 10;
+                generator.commentLines = 500 * scale;
+                break;
+            default:
+                throw new RuntimeException("Unknown shape " + shape);
+        }
+        return generator;
+    }
+
+    public String generate(String className){
+        StringBuilder out = new StringBuilder();
+        out.append("class ").append(className).append(" {\n");
+        out.append("    field int f0, f1, f2;\n");
+        out.append("    field Array data;\n");
+        out.append("    static String label;\n\n");
+
+        out.append("    constructor ").append(className).append(" new() {\n");
+        out.append("        let f0 = 1;\n        let f1 = 2;\n        let f2 = 3;\n");
+        out.append("        let data = Array.new(64);\n");
+        out.append("        return this;\n    }\n");
+
+        for (int i = 0; i < subroutines; i++){
+            out.append('\n');
+            comment(out, i);
+            out.append("    method int m").append(i).append("(int a, int b) {\n");
+            out.append("        var int x, y, z;\n");
+            out.append("        var String s;\n");
+            for (int j = 0; j < statements; j++){
+                statement(out, 2, nesting);
+            }
+            out.append("        return ");
+            expression(out, depth);
+            out.append(";\n    }\n");
+        }
+        out.append("}\n");
+        return out.toString();
+    }
+
+    private void comment(StringBuilder out, int subroutine){
+        out.append("    /**\n");
+        for (int i = 0; i < commentLines; i++){
+            out.append("     * Line ").append(i).append(" about m")
+                .append(subroutine).append(": ");
+            word(out, 8 + random.nextInt(40));
+            out.append('\n');
+        }
+        out.append("     */\n");
+    }
+
+    // nesting: how many more ifs and whiles may open inside this one
+    private void statement(StringBuilder out, int indent, int nesting){
+        int kind = random.nextInt(nesting > 0 ? 7 : 4);
+        switch (kind){
+            case 0:
+                indent(out, indent).append("let ").append(assignable()).append(" = ");
+                expression(out, depth);
+                out.append(";\n");
+                break;
+            case 1:
+                indent(out, indent).append("let data[");
+                expression(out, 1);
+                out.append("] = ");
+                expression(out, depth);
+                out.append(";\n");
+                break;
+            case 2:
+                indent(out, indent).append("let s = \"");
+                word(out, stringLength);
+                out.append("\";\n");
+                indent(out, indent).append("do Output.printString(s);\n");
+                break;
+            case 3:
+                indent(out, indent).append("do m")
+                    .append(random.nextInt(Math.max(1, subroutines))).append('(');
+                expression(out, 1);
+                out.append(", ");
+                expression(out, 1);
+                out.append(");\n");
+                indent(out, indent).append("// Result ignored\n");
+                break;
+            case 4:
+                indent(out, indent).append("while (x < ");
+                expression(out, 1);
+                out.append(") {\n");
+                statement(out, indent + 1, nesting - 1);
+                indent(out, indent + 1).append("let x = x + 1;\n");
+                indent(out, indent).append("}\n");
+                break;
+            default:
+                // if / else { if / else { ... } }, chain branches long;
+                // written flat, like an else-if chain
+                indent(out, indent);
+                for (int i = 0; i < chain; i++){
+                    out.append("if (");
+                    expression(out, 2);
+                    out.append(") {\n");
+                    statement(out, indent + 1, nesting - 1);
+                    indent(out, indent).append("} else { ");
+                }
+                out.append("let y = y - 1;\n");
+                indent(out, indent);
+                for (int i = 0; i < chain; i++){
+                    out.append('}');
+                }
+                out.append('\n');
+                break;
+        }
+    }
+
+    // An expression whose parentheses nest depth deep; one side of every
+    // operator is a plain term, so the size grows linearly with depth
+    private void expression(StringBuilder out, int depth){
+        if (depth == 0){
+            term(out);
+            return;
+        }
+        switch (random.nextInt(4)){
+            case 0:
+                out.append(random.nextBoolean() ? '-' : '~').append('(');
+                expression(out, depth - 1);
+                out.append(')');
+                break;
+            case 1:
+                term(out);
+                out.append(' ').append(operator()).append(" (");
+                expression(out, depth - 1);
+                out.append(')');
+                break;
+            default:
+                out.append('(');
+                expression(out, depth - 1);
+                out.append(") ").append(operator()).append(' ');
+                term(out);
+                break;
+        }
+    }
+
+    private void term(StringBuilder out){
+        switch (random.nextInt(5)){
+            case 0:
+                out.append(random.nextInt(32768));
+                break;
+            case 1:
+                out.append("data[").append(variables[random.nextInt(3)]).append(']');
+                break;
+            case 2:
+                out.append(random.nextBoolean() ? "true" : "null");
+                break;
+            default:
+                out.append(variables[random.nextInt(variables.length)]);
+                break;
+        }
+    }
+
+    private String assignable(){
+        return variables[2 + random.nextInt(variables.length - 2)];
+    }
+
+    private char operator(){
+        return operators[random.nextInt(operators.length)];
+    }
+
+    // Letters and spaces only, so it is safe in strings and comments
+    private void word(StringBuilder out, int length){
+        for (int i = 0; i < length; i++){
+            out.append(
+                random.nextInt(6) == 0 ? ' ' : (char) ('a' + random.nextInt(26))
+            );
+        }
+    }
+
+    private static StringBuilder indent(StringBuilder out, int levels){
+        for (int i = 0; i < levels; i++){
+            out.append("    ");
+        }
+        return out;
+    }
+
+    public static void main(String[] args){
+        String shape = "balanced";
+        int scale = 1;
+        long seed = 1;
+        int classes = 1;
+        String directory = null;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--shape") && i + 1 < args.length){
+                shape = args[++i];
+            } else if (args[i].equals("--scale") && i + 1 < args.length){
+                scale = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length){
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--classes") && i + 1 < args.length){
+                classes = Integer.parseInt(args[++i]);
+            } else {
+                directory = args[i];
+            }
+        }
+        if (directory == null){
+            System.out.println(
+                "Usage: java JackGenerator [--shape " + String.join("|", shapes) +
+                "] [--scale n] [--seed n] [--classes n] <output directory>"
+            );
+            return;
+        }
+
+        new File(directory).mkdirs();
+        for (int i = 0; i < classes; i++){
+            // Each class gets its own seed, so --classes only adds classes
+            String className = "Gen" + i;
+            String path = new File(directory, className + ".jack").getPath();
+            try (PrintWriter writer = new PrintWriter(path)){
+                writer.print(shape(shape, seed + i, scale).generate(className));
+            } catch (FileNotFoundException e){
+                System.out.println(
+                    "The provided output file (\"" + path + "\") could not be created."
+                );
+                return;
+            }
+            System.out.println(path);
+        }
+    }
+}
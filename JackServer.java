@@ -0,0 +1,178 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Keeps one JVM, with the tokenizer and parser already loaded and
+// compiled by the JIT, serving compile requests. Requests arrive on stdin
+// or, with --socket, on a Unix domain socket (see JackClient).
+//
+// Requests are lines whose fields are separated by tabs, or by spaces if
+// the line has no tab. Every reply ends with a line holding only "end".
+//
+//   compile <JackAnalyzer arguments...>
+//       Runs the command line as JackAnalyzer would and replies with its
+//       report lines.
+//   source <name> [JackAnalyzer options...]
+//       Followed by the class's source lines and a line holding only ".";
+//       source lines starting with "." are sent with one more ".". Replies
+//       with the VM code (or XML), or with one "error <diagnostic>" line
+//       per problem found (see Diagnostic).
+//   quit
+//       Ends this client's session.
+//   shutdown
+//       Stops the server.
+public class JackServer {
+
+    public static final String DEFAULT_SOCKET = new File(
+        System.getProperty("java.io.tmpdir"), "jack-compiler.sock"
+    ).getPath();
+
+    public static void main(String[] args) throws IOException {
+        String socketPath = null;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("--socket")){
+                socketPath = i + 1 < args.length ? args[++i] : DEFAULT_SOCKET;
+            } else {
+                System.out.println(
+                    "Usage: java JackServer [--socket [<path>]]"
+                );
+                return;
+            }
+        }
+
+        if (socketPath == null){
+            serve(new BufferedReader(new InputStreamReader(
+                System.in, StandardCharsets.UTF_8
+            )), System.out);
+        } else {
+            listen(socketPath);
+        }
+    }
+
+    // Serves every connection on its own thread until a client sends
+    // shutdown. Compilations share nothing, so clients never wait for
+    // each other.
+    private static void listen(String socketPath) throws IOException {
+        File socketFile = new File(socketPath);
+        // A socket file left by a server that did not shut down cleanly
+        socketFile.delete();
+
+        try (ServerSocketChannel server =
+                ServerSocketChannel.open(StandardProtocolFamily.UNIX)){
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            System.out.println("Listening on " + socketPath);
+            while (true){
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException e){ // Shut down
+                    break;
+                }
+                new Thread(() -> session(server, client)).start();
+            }
+        } finally {
+            socketFile.delete();
+        }
+    }
+
+    private static void session(ServerSocketChannel server, SocketChannel client){
+        try (SocketChannel channel = client){
+            boolean running = serve(
+                new BufferedReader(new InputStreamReader(
+                    Channels.newInputStream(channel), StandardCharsets.UTF_8
+                )),
+                new PrintStream(
+                    Channels.newOutputStream(channel), false,
+                    StandardCharsets.UTF_8
+                )
+            );
+            if (!running){
+                // Wakes the accept loop up
+                server.close();
+            }
+        } catch (IOException e){ // A client that went away
+            System.out.println("Client error: " + e.getMessage());
+        }
+    }
+
+    // Answers requests until the client is done; false on shutdown
+    public static boolean serve(BufferedReader in, PrintStream out)
+            throws IOException {
+        String line;
+        while ((line = in.readLine()) != null){
+            String[] fields = split(line);
+            if (fields.length == 0) continue;
+
+            switch (fields[0]){
+                case "compile":
+                    JackAnalyzer.run(
+                        Arrays.copyOfRange(fields, 1, fields.length), out
+                    );
+                    break;
+
+                case "source":
+                    compileSource(fields, in, out);
+                    break;
+
+                case "quit":
+                    return true;
+
+                case "shutdown":
+                    out.println("end");
+                    out.flush();
+                    return false;
+
+                default:
+                    out.println("error Unknown request: " + fields[0]);
+                    break;
+            }
+            out.println("end");
+            out.flush();
+        }
+        return true;
+    }
+
+    private static void compileSource(
+            String[] fields, BufferedReader in, PrintStream out)
+            throws IOException {
+        StringBuilder source = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(".")){
+            source.append(line.startsWith(".") ? line.substring(1) : line);
+            source.append('\n');
+        }
+
+        String name = fields.length > 1 ? fields[1] : "<source>";
+        CompilerOptions options = CompilerOptions.parse(
+            Arrays.copyOfRange(fields, Math.min(2, fields.length), fields.length),
+            new ArrayList<String>()
+        );
+        try {
+            out.print(JackAnalyzer.compileSource(name, source, options));
+        } catch (CompileError e){
+            for (Diagnostic diagnostic : e.getDiagnostics()){
+                out.println("error " + diagnostic);
+            }
+        } catch (RuntimeException e){
+            out.println("error " + name + ": " + e.getMessage());
+        }
+    }
+
+    static String[] split(String line){
+        if (line.isEmpty()){
+            return new String[0];
+        }
+        return line.split(line.indexOf('\t') >= 0 ? "\t" : " +");
+    }
+}
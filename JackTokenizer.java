@@ -1,6 +1,13 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
 import java.util.regex.Matcher;
@@ -13,128 +20,650 @@ public class JackTokenizer {
         "\\w+|//|/\\*\\*|\\*/|[{}()\\[\\]\\.,;=<>+\\-\\*/\\\"\\n]|."
     );
 
+    // Character classes for the single-pass lexer, indexed by ASCII code
+    private static final byte OTHER = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte LETTER = 2;
+    private static final byte DIGIT = 3;
+    private static final byte SYMBOL = 4;
+    private static final byte QUOTE = 5;
+
+    private static final byte[] charClasses = new byte[128];
+    static {
+        for (char c = 'a'; c <= 'z'; c++) charClasses[c] = LETTER;
+        for (char c = 'A'; c <= 'Z'; c++) charClasses[c] = LETTER;
+        for (char c = '0'; c <= '9'; c++) charClasses[c] = DIGIT;
+        charClasses['_'] = LETTER;
+        charClasses['"'] = QUOTE;
+        for (char c : new char[]{' ', '\t', '\n', '\r', '\f'}){
+            charClasses[c] = WHITESPACE;
+        }
+        for (char c = 0; c < 128; c++){
+            if (Token.isSymbol(c)) charClasses[c] = SYMBOL;
+        }
+    }
+
+    // Keywords bucketed by first letter, so a word can be checked against
+    // them straight from the source without building a String
+    private static KeywordType[][] keywordsByLetter = new KeywordType[26][];
+    static {
+        for (KeywordType keyword : KeywordType.values()){
+            int letter = keyword.toString().charAt(0) - 'a';
+            KeywordType[] bucket = keywordsByLetter[letter];
+            if (bucket == null){
+                bucket = new KeywordType[]{keyword};
+            } else {
+                bucket = Arrays.copyOf(bucket, bucket.length + 1);
+                bucket[bucket.length - 1] = keyword;
+            }
+            keywordsByLetter[letter] = bucket;
+        }
+    }
+
+    // Tokens are lexed on demand into a ring of this many slots. The
+    // parser may look at most this far behind the newest lexed token.
+    private static final int WINDOW_SIZE = 8;
+
     private String filePath;
+    private boolean useScanner;
     private Scanner scanner;
+    private CharSequence source;
+    private int position;
+    // Where each line starts, built the first time a position is needed
+    private LineTable lines;
+
+    // Scanner-mode state, kept between calls so scanning can resume.
+    // The fragments are consecutive slices of source, so positions are
+    // counted as they go by.
+    private Matcher fragmentMatch;
+    private int fragmentOffset;
+    private int nextFragmentOffset;
+    private boolean inSingleComment = false;
+    private boolean inMultiComment = false;
+    private int commentStart;
+    private boolean inString = false;
+    private int stringStart;
+    private String currString = "";
+
+    // Set when replaying tokens that were lexed earlier
+    private List<Token> replay;
+    private int replayIndex;
+
+    private TokenBuffer buffer;
+    private int cursor;
+    private boolean exhausted;
 
-    private String currentTokenString;
     private List<Token> tokens;
 
+    // Problems found so far, by the lexer and by whoever parses its tokens
+    private static final int MAX_DIAGNOSTICS = 100;
+    private List<Diagnostic> diagnostics = new ArrayList<Diagnostic>();
+    private int droppedDiagnostics;
+
     public JackTokenizer(String filePath){
+        this(filePath, false);
+    }
+
+    // useScanner selects the original Scanner/regex tokenizer instead of
+    // the single-pass lexer; both produce the same tokens.
+    public JackTokenizer(String filePath, boolean useScanner){
         this.filePath = filePath;
-        initializeScanner();
+        this.useScanner = useScanner;
+        if (useScanner){
+            initializeScanner();
+        } else {
+            initializeSource();
+        }
+        this.buffer = new TokenBuffer(
+            source, new SymbolPool(), WINDOW_SIZE, false
+        );
+    }
 
-        this.tokens = new ArrayList<Token>();
+    // All in-memory sources end up here and share the same lexer. name is
+    // only used to identify the source, e.g. in error messages.
+    private JackTokenizer(String name, CharSequence source, boolean useScanner){
+        this.filePath = name;
+        this.useScanner = useScanner;
+        this.source = source;
+        if (useScanner){
+            this.scanner = new Scanner(source.toString());
+            this.scanner.useDelimiter("\\b");
+        }
+        this.buffer = new TokenBuffer(
+            source, new SymbolPool(), WINDOW_SIZE, false
+        );
+    }
+
+    public static JackTokenizer fromSource(String name, CharSequence source){
+        return new JackTokenizer(name, source, false);
+    }
+
+    public static JackTokenizer fromSource(
+            String name, CharSequence source, boolean useScanner){
+        return new JackTokenizer(name, source, useScanner);
+    }
+
+    public static JackTokenizer fromBytes(String name, byte[] bytes){
+        return fromBuffer(name, ByteBuffer.wrap(bytes));
+    }
+
+    public static JackTokenizer fromBytes(
+            String name, byte[] bytes, boolean useScanner){
+        return new JackTokenizer(
+            name, ByteCharSequence.decode(ByteBuffer.wrap(bytes)), useScanner
+        );
+    }
+
+    // ASCII buffers are lexed in place; other bytes are decoded as UTF-8
+    public static JackTokenizer fromBuffer(String name, ByteBuffer bytes){
+        return new JackTokenizer(name, ByteCharSequence.decode(bytes), false);
+    }
 
-        readFile();
+    // Maps the whole channel read-only and lexes straight out of the
+    // mapping. The mapping lives until the tokenizer, its tokens and any
+    // tree built from them are garbage collected, and on Windows the file
+    // cannot be edited or deleted until then; long-lived processes such as
+    // JackServer should read files instead.
+    public static JackTokenizer fromChannel(String name, FileChannel channel)
+            throws IOException {
+        return fromBuffer(name, map(channel));
     }
 
+    // Hands out tokens that were already lexed, e.g. to time the parser alone
+    public static JackTokenizer fromTokens(String name, List<Token> tokens){
+        JackTokenizer tokenizer = new JackTokenizer(name, "", false);
+        tokenizer.replay = tokens;
+        return tokenizer;
+    }
+
+    private static ByteBuffer map(FileChannel channel) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    // Lexes everything that has not been pulled yet into one list. Use
+    // either this (through getTokens) or the pull API, not both.
     public void readFile(){
-        boolean inSingleComment = false;
-        boolean inMultiComment = false;
-        boolean inString = false;
-        String currString = "";
+        this.tokens = new ArrayList<Token>();
+        while (nextToken()){
+            tokens.add(buffer.getToken(buffer.size() - 1));
+        }
+        exhausted = true;
+        checkDiagnostics();
+    }
 
-        Matcher match;
-        String curr;
-        while (hasMoreTokens()){
-            advance();
-            match = masterPattern.matcher(currentTokenString);
-            while (match.find()){
-                curr = match.group();
-                // Deal with comments
-                switch (curr){
-                    // Multi-Line Comments
-                    case "/*":
-                    case "/**":
-                        if (!inMultiComment)
-                            inMultiComment = true;
-                        else
-                            throw new RuntimeException(
-                                "Illegal Token " + curr
-                            );
-                        break;
+    // Lexes the rest of the source into a buffer that keeps every token,
+    // the compact alternative to getTokens. Call before pulling anything.
+    // Problems are only reported; see checkDiagnostics.
+    public TokenBuffer readAll(){
+        if (buffer.size() == 0){
+            buffer = new TokenBuffer(
+                source, buffer.getSymbolPool(), 1024, true
+            );
+        }
+        while (nextToken());
+        exhausted = true;
+        return buffer;
+    }
 
-                    case "*/":
-                        if (inMultiComment){
-                            inMultiComment = false;
-                            continue;
-                        }
-                        else{
-                            throw new RuntimeException(
-                                "Illegal Token " + curr
-                            );
-                        }
+    // Shares pool with other tokenizers, e.g. every file in a batch, so
+    // that the same name gets the same id everywhere. Call before lexing.
+    public void setSymbolPool(SymbolPool pool){
+        if (buffer.size() > 0){
+            throw new IllegalStateException("Tokens were already lexed");
+        }
+        buffer = new TokenBuffer(source, pool, WINDOW_SIZE, false);
+    }
+
+    public SymbolPool getSymbolPool(){
+        return buffer.getSymbolPool();
+    }
+
+    // Lexed tokens, indexed like advance/peek
+    public TokenBuffer getTokenBuffer(){
+        return buffer;
+    }
+
+    // Records a problem at offset (-1 if unknown) and carries on; see
+    // checkDiagnostics
+    public void report(int offset, String message){
+        if (diagnostics.size() == MAX_DIAGNOSTICS){
+            droppedDiagnostics++;
+            return;
+        }
+        diagnostics.add(new Diagnostic(
+            filePath, offset, lineOf(offset), columnOf(offset), message
+        ));
+    }
+
+    public List<Diagnostic> getDiagnostics(){
+        return diagnostics;
+    }
+
+    // Throws a CompileError listing every problem reported, in source
+    // order, if there were any
+    public void checkDiagnostics(){
+        if (diagnostics.isEmpty()){
+            return;
+        }
+        diagnostics.sort((a, b) -> Integer.compare(a.getOffset(), b.getOffset()));
+        throw new CompileError(diagnostics, droppedDiagnostics);
+    }
+
+    // Turns token offsets into lines and columns
+    public LineTable getLineTable(){
+        if (lines == null){
+            lines = new LineTable(source != null ? source : "");
+        }
+        return lines;
+    }
+
+    // 1-based line of offset, or 0 if it is -1
+    public int lineOf(int offset){
+        return getLineTable().lineOf(offset);
+    }
+
+    // 1-based column of offset, or 0 if it is -1
+    public int columnOf(int offset){
+        return getLineTable().columnOf(offset);
+    }
+
+    public boolean hasMoreTokens(){
+        return hasTokenAt(cursor);
+    }
+
+    // Consumes the token under the cursor; returns its index, to be read
+    // through getTokenBuffer
+    public int advance(){
+        return tokenIndex(cursor++);
+    }
+
+    // The index of the k-th token after the cursor without consuming it,
+    // or -1 at the end of the file. k must stay inside the lookahead
+    // window.
+    public int peek(int k){
+        if (k < 0 | k >= WINDOW_SIZE){
+            throw new IllegalArgumentException(
+                "Lookahead " + k + " is outside the window"
+            );
+        }
+        return hasTokenAt(cursor + k) ? cursor + k : -1;
+    }
+
+    // Tokens consumed so far
+    public int getPosition(){
+        return cursor;
+    }
 
+    // A second cursor over the same tokens, starting where this one is,
+    // e.g. to scan ahead or to parse part of the file on another thread.
+    // Only once readAll has kept every token; the copy shares them and
+    // lexes nothing.
+    public JackTokenizer fork(){
+        if (!exhausted || buffer.size() > 0 && !buffer.isRetained(0)){
+            throw new IllegalStateException("Only the lookahead window was kept");
+        }
+        JackTokenizer fork = new JackTokenizer(filePath, source, false);
+        fork.buffer = buffer;
+        fork.exhausted = true;
+        fork.cursor = cursor;
+        return fork;
+    }
+
+    private boolean hasTokenAt(int index){
+        fill(index);
+        return index < buffer.size();
+    }
+
+    private int tokenIndex(int index){
+        fill(index);
+        if (index >= buffer.size()){
+            throw new RuntimeException("Unexpected end of file");
+        }
+        if (!buffer.isRetained(index)){
+            throw new IllegalStateException(
+                "Token " + index + " is outside the lookahead window"
+            );
+        }
+        return index;
+    }
+
+    private void fill(int index){
+        while (!exhausted && buffer.size() <= index){
+            if (!nextToken()){
+                exhausted = true;
+            }
+        }
+    }
+
+    // Adds the next token to the buffer, or returns false at the end
+    private boolean nextToken(){
+        if (replay != null){
+            if (replayIndex == replay.size()){
+                return false;
+            }
+            buffer.add(replay.get(replayIndex++));
+            return true;
+        } else if (useScanner){
+            return scanNext();
+        } else {
+            return lexNext();
+        }
+    }
+
+    // Walks the source once, classifying each character through
+    // charClasses; no regex is run and no exception is thrown. Malformed
+    // input is reported and skipped. Returns false at the end of the
+    // source.
+    private boolean lexNext(){
+        int length = source.length();
+        while (position < length){
+            char c = source.charAt(position);
+            byte charClass = c < 128 ? charClasses[c] : OTHER;
+            switch (charClass){
+                case WHITESPACE:
+                    position++;
+                    break;
+
+                case LETTER:
+                case DIGIT:
+                    int start = position;
+                    while (position < length && isWordChar(source.charAt(position))){
+                        position++;
+                    }
+                    lexWord(start, position);
+                    return true;
+
+                case QUOTE:
+                    int end = position + 1;
+                    while (end < length && source.charAt(end) != '"'
+                            && source.charAt(end) != '\n'){
+                        end++;
+                    }
+                    boolean terminated = end < length && source.charAt(end) == '"';
+                    if (!terminated){
+                        // Taken as ending at the end of the line
+                        report(position, "Unterminated String");
+                    }
+                    buffer.add(
+                        TokenType.STRING_CONST,
+                        buffer.getSymbolPool().intern(source, position + 1, end),
+                        position + 1, end - position - 1
+                    );
+                    position = terminated ? end + 1 : end;
+                    return true;
+
+                case SYMBOL:
+                    char next = position + 1 < length ? source.charAt(position + 1) : 0;
                     // Single-line comments
-                    case "//":
-                        inSingleComment = true;
+                    if (c == '/' && next == '/'){
+                        while (position < length && source.charAt(position) != '\n'){
+                            position++;
+                        }
                         break;
-
-                    case "\n":
-                        if (inSingleComment){
-                            inSingleComment = false;
-                            continue;
+                    }
+                    // Multi-Line Comments
+                    if (c == '/' && next == '*'){
+                        int close = indexOfCommentEnd(position + 2);
+                        if (close < 0){
+                            report(position, "Unterminated Comment");
+                            position = length;
+                            break;
                         }
+                        position = close + 2;
                         break;
-                }
+                    }
+                    if (c == '*' && next == '/'){
+                        report(position, "Illegal Token */");
+                        position += 2;
+                        break;
+                    }
+                    buffer.add(TokenType.SYMBOL, c, position, 1);
+                    position++;
+                    return true;
 
-                if (inSingleComment | inMultiComment){
-                    continue;
+                default:
+                    report(position, "Invalid Identifier " + c);
+                    position++;
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private int indexOfCommentEnd(int from){
+        int last = source.length() - 1;
+        for (int i = from; i < last; i++){
+            if (source.charAt(i) == '*' && source.charAt(i + 1) == '/'){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Classifies source[start, end) as an integer, keyword or identifier
+    // and adds it to the buffer
+    private void lexWord(int start, int end){
+        char first = source.charAt(start);
+
+        if (charClasses[first] == DIGIT){
+            // A bad constant is reported and read as 0, so parsing goes on
+            int intVal = 0;
+            for (int i = start; i < end; i++){
+                char c = source.charAt(i);
+                if (charClasses[c] != DIGIT){
+                    report(start,
+                        "Invalid Identifier " + source.subSequence(start, end)
+                    );
+                    intVal = 0;
+                    break;
                 }
+                intVal = intVal * 10 + (c - '0');
+                if (intVal > 32_767){
+                    report(start,
+                        "Invalid Integer Constant " +
+                        source.subSequence(start, end)
+                    );
+                    intVal = 0;
+                    break;
+                }
+            }
+            buffer.add(TokenType.INT_CONST, intVal, start, end - start);
+            return;
+        }
 
-                // Deal with new lines
-                if (curr.equals("\n")){
-                    if (inString){
-                        throw new RuntimeException("Unterminated String");
-                    }
-                    continue;
+        KeywordType keyword = lookupKeyword(start, end);
+        if (keyword != null){
+            buffer.add(TokenType.KEYWORD, keyword.ordinal(), start, end - start);
+            return;
+        }
+        buffer.add(
+            TokenType.IDENTIFIER,
+            buffer.getSymbolPool().intern(source, start, end),
+            start, end - start
+        );
+    }
+
+    private KeywordType lookupKeyword(int start, int end){
+        char first = source.charAt(start);
+        if (first < 'a' | first > 'z'){
+            return null;
+        }
+        KeywordType[] bucket = keywordsByLetter[first - 'a'];
+        if (bucket == null){
+            return null;
+        }
+        for (KeywordType keyword : bucket){
+            String name = keyword.toString();
+            if (name.length() != end - start){
+                continue;
+            }
+            int i = 1;
+            while (i < name.length() && name.charAt(i) == source.charAt(start + i)){
+                i++;
+            }
+            if (i == name.length()){
+                return keyword;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isWordChar(char c){
+        return c < 128 && (charClasses[c] == LETTER | charClasses[c] == DIGIT);
+    }
+
+    // The original tokenizer: splits the file on word boundaries and runs
+    // masterPattern over each fragment. Adds the next token to the buffer,
+    // at its place in the source, or returns false at the end of the file.
+    // Malformed input is reported where it is and skipped, as in lexNext.
+    private boolean scanNext(){
+        String curr;
+        int offset;
+        while (true){
+            while (fragmentMatch == null || !fragmentMatch.find()){
+                if (!hasMoreFragments()){
+                    return scanEnd();
                 }
+                String fragment = nextFragment();
+                fragmentOffset = nextFragmentOffset;
+                nextFragmentOffset += fragment.length();
+                fragmentMatch = masterPattern.matcher(fragment);
+            }
 
-                // Deal with strings
-                if (curr.equals("\"")){
-                    if (inString){
-                        inString = false;
-                        tokens.add(new Token(currString, false));
-                        currString = "";
+            curr = fragmentMatch.group();
+            offset = fragmentOffset + fragmentMatch.start();
+            // Deal with comments
+            switch (curr){
+                // Multi-Line Comments
+                case "/*":
+                case "/**":
+                    if (!inMultiComment){
+                        inMultiComment = true;
+                        commentStart = offset;
                     } else {
-                        inString = true;
+                        report(offset, "Illegal Token " + curr);
                     }
-                    continue;
-                }
+                    break;
+
+                case "*/":
+                    if (inMultiComment){
+                        inMultiComment = false;
+                        continue;
+                    }
+                    if (!inString && !inSingleComment){
+                        report(offset, "Illegal Token " + curr);
+                        continue;
+                    }
+                    break;
+
+                // Single-line comments
+                case "//":
+                    inSingleComment = true;
+                    break;
+
+                case "\n":
+                    if (inSingleComment){
+                        inSingleComment = false;
+                        continue;
+                    }
+                    break;
+            }
 
+            if (inSingleComment | inMultiComment){
+                continue;
+            }
+
+            // Deal with new lines
+            if (curr.equals("\n")){
                 if (inString){
-                    currString += curr;
-                    continue;
+                    // Taken as ending at the end of the line
+                    report(stringStart, "Unterminated String");
+                    return addString(offset);
                 }
+                continue;
+            }
 
-                // Deal with integers
-                try{
-                    int intVal = Integer.parseInt(curr);
-                    tokens.add(new Token(intVal));
-                    continue;
-                } catch (NumberFormatException e){}
-
-                // Deal with symbols
-                if (curr.length() == 1
-                        && Token.possibleSymbols.contains(curr.charAt(0))
-                    ){
-                    tokens.add(new Token(curr.charAt(0)));
-                    continue;
+            // Deal with strings
+            if (curr.equals("\"")){
+                if (inString){
+                    return addString(offset);
                 }
+                inString = true;
+                stringStart = offset;
+                continue;
+            }
 
-                // Deal with keywords
-                try{
-                    tokens.add(new Token(curr));
-                    continue;
-                } catch (RuntimeException e){}
+            if (inString){
+                currString += curr;
+                continue;
+            }
 
-                // Must be an identifier
-                if (curr.replaceAll("\\s", "").length() == 0){
+            // Whitespace between tokens
+            if (curr.replaceAll("\\s", "").length() == 0){
+                continue;
+            }
+
+            Token token;
+            try {
+                token = scanToken(curr);
+            } catch (RuntimeException e){
+                // A bad constant is read as 0, so parsing goes on;
+                // anything else is dropped
+                report(offset, e.getMessage());
+                if (!Character.isDigit(curr.charAt(0))){
                     continue;
                 }
-                tokens.add(new Token(curr, true));
+                token = new Token(0);
             }
+            buffer.add(token, offset, curr.length());
+            return true;
+        }
+    }
+
+    // Classifies one non-blank match outside strings and comments
+    private static Token scanToken(String curr){
+        // Deal with integers
+        try{
+            int intVal = Integer.parseInt(curr);
+            return new Token(intVal);
+        } catch (NumberFormatException e){}
+
+        // Deal with symbols
+        if (curr.length() == 1
+                && Token.isSymbol(curr.charAt(0))
+            ){
+            return Token.symbol(curr.charAt(0));
+        }
+
+        // Deal with keywords
+        try{
+            return new Token(curr);
+        } catch (RuntimeException e){}
+
+        // Must be an identifier
+        return new Token(curr, true);
+    }
+
+    // Adds the string begun at stringStart and ending at end
+    private boolean addString(int end){
+        buffer.add(new Token(currString, false),
+            stringStart + 1, end - stringStart - 1);
+        inString = false;
+        currString = "";
+        return true;
+    }
+
+    // At the end of the file, reports what was left open
+    private boolean scanEnd(){
+        if (inMultiComment){
+            inMultiComment = false;
+            report(commentStart, "Unterminated Comment");
+        }
+        if (inString){
+            report(stringStart, "Unterminated String");
+            return addString(nextFragmentOffset);
         }
+        return false;
     }
 
     public String getFilePath(){
@@ -142,28 +671,44 @@ public class JackTokenizer {
     }
 
     public List<Token> getTokens(){
+        if (this.tokens == null){
+            readFile();
+        }
         return this.tokens;
     }
 
-    public boolean hasMoreTokens(){
-        return this.scanner.hasNext();
+    private boolean hasMoreFragments(){
+        return this.scanner != null && this.scanner.hasNext();
     }
 
-    public void advance(){
-        this.currentTokenString = this.scanner.next();
+    private String nextFragment(){
+        return this.scanner.next();
     }
 
-    public void initializeScanner(){
+    // Read onto the heap in one call rather than mapped: tokens are pulled
+    // long after construction, and a mapping held that long would keep the
+    // file locked on Windows (see fromChannel)
+    public void initializeSource(){
+        Path path = Paths.get(filePath);
         try {
-            File file = new File(this.filePath);
-            this.scanner = new Scanner(file);
-            this.scanner.useDelimiter("\\b");
-        } catch (FileNotFoundException e){
+            this.source = ByteCharSequence.decode(
+                ByteBuffer.wrap(Files.readAllBytes(path))
+            );
+        } catch (IOException e){
             System.out.println(
                 "The provided input file (" + filePath + ") was not found."
             );
+            this.source = "";
         }
     }
+
+    // Scans the source read as initializeSource does, so tokens and
+    // diagnostics have positions in it
+    public void initializeScanner(){
+        initializeSource();
+        this.scanner = new Scanner(source.toString());
+        this.scanner.useDelimiter("\\b");
+    }
 }
 
 
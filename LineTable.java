@@ -0,0 +1,61 @@
+import java.util.Arrays;
+
+// The offset at which each line of a source starts. Tokens and tree nodes
+// only keep an int offset; this turns one into a line and column when a
+// position is actually shown, by binary search, at the cost of one int
+// per line.
+//
+// The table is filled in lazily, up to the furthest offset asked about,
+// so lexing pays nothing for it and a file without errors never builds
+// it at all.
+public class LineTable {
+
+    private CharSequence source;
+    private int[] starts = new int[64];
+    private int count = 1; // Line 1 starts at offset 0
+    // Newlines before this offset are already in starts
+    private int scanned;
+
+    public LineTable(CharSequence source){
+        this.source = source;
+    }
+
+    // 1-based line holding offset, or 0 if offset is -1 (no position)
+    public int lineOf(int offset){
+        if (offset < 0){
+            return 0;
+        }
+        scanTo(offset);
+        // The last line starting at or before offset
+        int low = 0;
+        int high = count - 1;
+        while (low < high){
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= offset){
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low + 1;
+    }
+
+    // 1-based column of offset, or 0 if offset is -1
+    public int columnOf(int offset){
+        if (offset < 0){
+            return 0;
+        }
+        return offset - starts[lineOf(offset) - 1] + 1;
+    }
+
+    private void scanTo(int offset){
+        int end = Math.min(offset, source.length());
+        for (; scanned < end; scanned++){
+            if (source.charAt(scanned) != '\n') continue;
+            if (count == starts.length){
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count++] = scanned + 1;
+        }
+    }
+}
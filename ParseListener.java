@@ -0,0 +1,21 @@
+// Receives the parse tree as CompilationEngine builds it, in document
+// order, so output can be produced while the class is still being parsed.
+public interface ParseListener {
+
+    void startNonTerminal(NonTerminal nonTerminal);
+
+    void endNonTerminal(NonTerminal nonTerminal);
+
+    // The token at index is only guaranteed to be readable from tokens
+    // for the duration of the call
+    void terminal(TokenBuffer tokens, int index);
+
+    // After an error, drops every non-terminal open past the outermost
+    // depth, so that events can carry on as if the innermost one kept
+    // were still open and nothing had happened since its last child.
+    // Returns false if the listener cannot do that; it then gets no more
+    // events.
+    default boolean restart(int depth){
+        return false;
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.FileNotFoundException;
+import java.io.Writer;
+
+// A VMWriter that holds the last few commands in a window and rewrites
+// wasteful sequences before they reach the file. After every command the
+// rules in PeepholeRule are tried, in order, against the end of the
+// window until none matches; commands that fall out of the window are
+// written. Nothing is matched across a function boundary.
+public class PeepholeOptimizer extends VMWriter {
+
+    private static final int WINDOW_SIZE = 8;
+    private static final PeepholeRule[] rules = PeepholeRule.values();
+
+    private static final int PUSH = 0;
+    private static final int POP = 1;
+    private static final int ARITHMETIC = 2;
+    private static final int LABEL = 3;
+    private static final int GOTO = 4;
+    private static final int IF = 5;
+    private static final int CALL = 6;
+    private static final int RETURN = 7;
+
+    // The window, oldest first
+    private int[] ops = new int[WINDOW_SIZE + 1];
+    private Segment[] segments = new Segment[WINDOW_SIZE + 1];
+    private Command[] commands = new Command[WINDOW_SIZE + 1];
+    private int[] indexes = new int[WINDOW_SIZE + 1];
+    private String[] names = new String[WINDOW_SIZE + 1];
+    private int size;
+
+    // False after a return or goto, until the next label
+    private boolean reachable = true;
+
+    private int[] hits = new int[rules.length];
+
+    public PeepholeOptimizer(String outputPath) throws FileNotFoundException {
+        super(outputPath);
+    }
+
+    public PeepholeOptimizer(Writer writer){
+        super(writer);
+    }
+
+    @Override
+    public void writePush(Segment segment, int index){
+        add(PUSH, segment, null, index, null);
+    }
+
+    @Override
+    public void writePop(Segment segment, int index){
+        add(POP, segment, null, index, null);
+    }
+
+    @Override
+    public void writeArithmetic(Command command){
+        add(ARITHMETIC, null, command, 0, null);
+    }
+
+    @Override
+    public void writeLabel(String label){
+        reachable = true;
+        add(LABEL, null, null, 0, label);
+    }
+
+    @Override
+    public void writeGoto(String label){
+        add(GOTO, null, null, 0, label);
+    }
+
+    @Override
+    public void writeIf(String label){
+        add(IF, null, null, 0, label);
+    }
+
+    @Override
+    public void writeCall(String name, int nArgs){
+        add(CALL, null, null, nArgs, name);
+    }
+
+    @Override
+    public void writeFunction(String name, int nLocals){
+        drain();
+        reachable = true;
+        super.writeFunction(name, nLocals);
+    }
+
+    @Override
+    public void writeReturn(){
+        add(RETURN, null, null, 0, null);
+    }
+
+    @Override
+    public void flush(){
+        drain();
+        super.flush();
+    }
+
+    @Override
+    public void close(){
+        drain();
+        super.close();
+    }
+
+    public int getHits(PeepholeRule rule){
+        return hits[rule.ordinal()];
+    }
+
+    // e.g. "not-not=3 goto-next=12"; rules that never fired are left out
+    public String getHitSummary(){
+        StringBuilder summary = new StringBuilder();
+        for (PeepholeRule rule : rules){
+            if (hits[rule.ordinal()] == 0) continue;
+            if (summary.length() > 0){
+                summary.append(' ');
+            }
+            summary.append(rule).append('=').append(hits[rule.ordinal()]);
+        }
+        return summary.length() > 0 ? summary.toString() : "no rewrites";
+    }
+
+    private void add(int op, Segment segment, Command command,
+            int index, String name){
+        if (!reachable){
+            hits[PeepholeRule.UNREACHABLE.ordinal()]++;
+            return;
+        }
+        ops[size] = op;
+        segments[size] = segment;
+        commands[size] = command;
+        indexes[size] = index;
+        names[size] = name;
+        size++;
+        if (op == RETURN | op == GOTO){
+            reachable = false;
+        }
+
+        while (applyRules());
+        if (size > WINDOW_SIZE){
+            writeOldest();
+        }
+    }
+
+    // Tries every rule against the end of the window; true if one fired
+    private boolean applyRules(){
+        for (PeepholeRule rule : rules){
+            if (apply(rule)){
+                hits[rule.ordinal()]++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Each rule checks the window holds enough commands first: an earlier
+    // rewrite may have emptied it, e.g. not-not then false-if on
+    // "if (true)" at the start of a function
+    private boolean apply(PeepholeRule rule){
+        int last = size - 1;
+        switch (rule){
+            case PUSH_POP:
+                // push x / pop x leaves everything as it was
+                if (size >= 2 && ops[last - 1] == PUSH && ops[last] == POP
+                        && segments[last - 1] == segments[last]
+                        && indexes[last - 1] == indexes[last]){
+                    size -= 2;
+                    return true;
+                }
+                return false;
+
+            case POP_PUSH_TEMP:
+                // The code generator only reads temp 0 back inside the array
+                // store that wrote it, so a value stored and reloaded straight
+                // away can stay on the stack. Temps 1 and 2 hold operands
+                // that are read again later.
+                if (size >= 2 && ops[last - 1] == POP && ops[last] == PUSH
+                        && segments[last - 1] == Segment.TEMP
+                        && segments[last] == Segment.TEMP
+                        && indexes[last - 1] == 0 && indexes[last] == 0){
+                    size -= 2;
+                    return true;
+                }
+                return false;
+
+            case NOT_NOT:
+                if (size >= 2 && isArithmetic(last - 1, Command.NOT)
+                        && isArithmetic(last, Command.NOT)){
+                    size -= 2;
+                    return true;
+                }
+                return false;
+
+            case TRUE_IF:
+                // push constant 0 / not / if-goto L always jumps
+                if (size >= 3 && isConstant(last - 2, 0)
+                        && isArithmetic(last - 1, Command.NOT)
+                        && ops[last] == IF){
+                    String label = names[last];
+                    size -= 3;
+                    add(GOTO, null, null, 0, label);
+                    return true;
+                }
+                return false;
+
+            case FALSE_IF:
+                // push constant 0 / if-goto L never jumps
+                if (size >= 2 && isConstant(last - 1, 0) && ops[last] == IF){
+                    size -= 2;
+                    return true;
+                }
+                return false;
+
+            case GOTO_NEXT:
+                // goto L followed only by labels, one of them L
+                if (size == 0 || ops[last] != LABEL) return false;
+                int first = last;
+                while (first > 0 && ops[first - 1] == LABEL){
+                    first--;
+                }
+                if (first == 0 || ops[first - 1] != GOTO) return false;
+                for (int i = first; i <= last; i++){
+                    if (names[i].equals(names[first - 1])){
+                        remove(first - 1);
+                        return true;
+                    }
+                }
+                return false;
+
+            default:
+                // UNREACHABLE is applied in add
+                return false;
+        }
+    }
+
+    private boolean isConstant(int i, int value){
+        return ops[i] == PUSH && segments[i] == Segment.CONSTANT
+            && indexes[i] == value;
+    }
+
+    private boolean isArithmetic(int i, Command command){
+        return ops[i] == ARITHMETIC && commands[i] == command;
+    }
+
+    private void remove(int i){
+        for (int j = i + 1; j < size; j++){
+            ops[j - 1] = ops[j];
+            segments[j - 1] = segments[j];
+            commands[j - 1] = commands[j];
+            indexes[j - 1] = indexes[j];
+            names[j - 1] = names[j];
+        }
+        size--;
+    }
+
+    private void drain(){
+        while (size > 0){
+            writeOldest();
+        }
+    }
+
+    private void writeOldest(){
+        switch (ops[0]){
+            case PUSH:
+                super.writePush(segments[0], indexes[0]);
+                break;
+            case POP:
+                super.writePop(segments[0], indexes[0]);
+                break;
+            case ARITHMETIC:
+                super.writeArithmetic(commands[0]);
+                break;
+            case LABEL:
+                super.writeLabel(names[0]);
+                break;
+            case GOTO:
+                super.writeGoto(names[0]);
+                break;
+            case IF:
+                super.writeIf(names[0]);
+                break;
+            case CALL:
+                super.writeCall(names[0], indexes[0]);
+                break;
+            default:
+                super.writeReturn();
+                break;
+        }
+        remove(0);
+    }
+}
+
+// The peephole rules, in the order they are tried
+enum PeepholeRule {
+    PUSH_POP("push-pop"),
+    POP_PUSH_TEMP("pop-push-temp"),
+    NOT_NOT("not-not"),
+    TRUE_IF("true-if"),
+    FALSE_IF("false-if"),
+    GOTO_NEXT("goto-next"),
+    UNREACHABLE("unreachable");
+
+    private final String text;
+
+    PeepholeRule(String text){
+        this.text = text;
+    }
+
+    @Override
+    public String toString(){
+        return text;
+    }
+}
@@ -0,0 +1,122 @@
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Compiles the sample programs on many threads at once, each thread in its
+// own shuffled order, and checks every output against a single-threaded
+// compile of the same file with the same options. Also checks that a
+// class name seen by one compilation is never accepted as a type by
+// another. Prints each mismatch and exits with status 1 if there was any,
+// so the build runs it as a check:
+//
+//   java StressCheck [threads] [rounds]
+public class StressCheck {
+
+    private static final String[] samples = {
+        "Square/Main.jack", "Square/Square.jack", "Square/SquareGame.jack",
+        "ExpressionLessSquare/Main.jack", "ExpressionLessSquare/Square.jack",
+        "ExpressionLessSquare/SquareGame.jack", "ArrayTest/Main.jack",
+        "11/Pong/Ball.jack", "11/Pong/Bat.jack", "11/Pong/PongGame.jack",
+        "11/ComplexArrays/Main.jack", "11/ConvertToBin/Main.jack"
+    };
+
+    // Every set of options that changes the output
+    private static final String[][] variants = {
+        {}, { "--no-peephole" }, { "--xml" }, { "--parallel-subroutines" }
+    };
+
+    // Square is one of the samples, but never known to this class
+    private static final String leak =
+        "class Leak { function Square f() { return null; } }";
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        CompilerOptions[] options = new CompilerOptions[variants.length];
+        String[] sources = new String[samples.length];
+        String[][] expected = new String[variants.length][samples.length];
+        for (int v = 0; v < variants.length; v++){
+            options[v] = CompilerOptions.parse(
+                variants[v], new ArrayList<String>()
+            );
+        }
+        for (int i = 0; i < samples.length; i++){
+            sources[i] = new String(Files.readAllBytes(Paths.get(samples[i])));
+            for (int v = 0; v < variants.length; v++){
+                expected[v][i] = JackAnalyzer.compileSource(
+                    samples[i], sources[i], options[v]
+                );
+            }
+        }
+
+        AtomicInteger compiles = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        List<Thread> workers = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++){
+            final Random random = new Random(t);
+            Thread worker = new Thread(() -> {
+                List<Integer> order = new ArrayList<Integer>();
+                for (int i = 0; i < samples.length * variants.length; i++){
+                    order.add(i);
+                }
+                for (int round = 0; round < rounds; round++){
+                    Collections.shuffle(order, random);
+                    for (int task : order){
+                        int i = task % samples.length;
+                        int v = task / samples.length;
+                        String problem;
+                        try {
+                            String output = JackAnalyzer.compileSource(
+                                samples[i], sources[i], options[v]
+                            );
+                            problem = output.equals(expected[v][i]) ?
+                                null : "output differs";
+                        } catch (RuntimeException e){
+                            problem = e.toString();
+                        }
+                        compiles.incrementAndGet();
+                        if (problem != null){
+                            fail(failures, samples[i] + ": " +
+                                String.join(" ", variants[v]) + " " + problem);
+                        }
+                    }
+                    try {
+                        JackAnalyzer.compileSource("Leak", leak, options[0]);
+                        fail(failures, "Leak: accepted Square as a type");
+                    } catch (CompileError e){
+                        // Expected: Square is not a type here
+                    } catch (RuntimeException e){
+                        fail(failures, "Leak: " + e);
+                    }
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers){
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf(
+            "stress: %d compiles on %d threads in %.1f ms, %d failures%n",
+            compiles.get(), threads, elapsed / 1e6, failures.get()
+        );
+        if (failures.get() > 0){
+            System.exit(1);
+        }
+    }
+
+    // Reports the first few failures; the count says how many there were
+    private static void fail(AtomicInteger failures, String message){
+        if (failures.incrementAndGet() <= 20){
+            System.out.println("stress: " + message);
+        }
+    }
+}
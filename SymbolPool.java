@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+// Maps every distinct identifier and string constant to a small int id.
+// Lexing a name that was seen before costs a hash over its characters and
+// allocates nothing; only the first occurrence becomes a String. Ids are
+// dense (0, 1, 2...), so later phases can index arrays by them.
+//
+// One pool normally serves one compilation, but a batch can share one
+// across files and threads.
+public class SymbolPool {
+
+    // Open-addressed table of id + 1 (0 marks an empty slot)
+    private int[] table = new int[256];
+    private int[] hashes = new int[128];
+    private volatile String[] names = new String[128];
+    private int size;
+
+    public synchronized int intern(CharSequence text, int start, int end){
+        int hash = hash(text, start, end);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0){
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && matches(names[id], text, start, end)){
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = size++;
+        if (id == hashes.length){
+            hashes = Arrays.copyOf(hashes, id * 2);
+            names = Arrays.copyOf(names, id * 2);
+        }
+        hashes[id] = hash;
+        names[id] = text.subSequence(start, end).toString();
+        table[slot] = id + 1;
+        if (size * 2 > table.length){
+            rehash();
+        }
+        return id;
+    }
+
+    public int intern(String text){
+        return intern(text, 0, text.length());
+    }
+
+    // The id of text, or -1 if it has never been interned
+    public synchronized int lookup(String text){
+        int hash = hash(text, 0, text.length());
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0){
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && names[id].equals(text)){
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public String getName(int id){
+        return names[id];
+    }
+
+    public synchronized int size(){
+        return size;
+    }
+
+    private void rehash(){
+        int[] grown = new int[table.length * 2];
+        int mask = grown.length - 1;
+        for (int id = 0; id < size; id++){
+            int slot = hashes[id] & mask;
+            while (grown[slot] != 0){
+                slot = (slot + 1) & mask;
+            }
+            grown[slot] = id + 1;
+        }
+        table = grown;
+    }
+
+    private static int hash(CharSequence text, int start, int end){
+        int hash = 0;
+        for (int i = start; i < end; i++){
+            hash = 31 * hash + text.charAt(i);
+        }
+        // Spread the low bits, which pick the slot
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(
+            String name, CharSequence text, int start, int end){
+        if (name.length() != end - start){
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++){
+            if (name.charAt(i) != text.charAt(start + i)){
+                return false;
+            }
+        }
+        return true;
+    }
+}
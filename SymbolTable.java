@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+// Class and subroutine scopes for the code generator. Names are looked up
+// by their SymbolPool id, so every lookup is an array access instead of a
+// string hash.
+public class SymbolTable {
+
+    private Scope classScope = new Scope();
+    private Scope subroutineScope = new Scope();
+
+    // Forgets the previous subroutine's arguments and locals
+    public void startSubroutine(){
+        subroutineScope.clear();
+    }
+
+    // Forgets everything, to start on a new class
+    public void startClass(){
+        classScope.clear();
+        subroutineScope.clear();
+    }
+
+    // Returns false if id is already defined in the same scope
+    public boolean define(int id, String type, VarKind kind){
+        Scope scope = kind == VarKind.STATIC | kind == VarKind.FIELD ?
+            classScope : subroutineScope;
+        if (scope.kindOf(id) != VarKind.NONE){
+            return false;
+        }
+        scope.define(id, type, kind);
+        return true;
+    }
+
+    // Skips an index of kind without naming it, e.g. argument 0 of a method
+    public void reserve(VarKind kind){
+        subroutineScope.counts[kind.ordinal()]++;
+    }
+
+    public int varCount(VarKind kind){
+        Scope scope = kind == VarKind.STATIC | kind == VarKind.FIELD ?
+            classScope : subroutineScope;
+        return scope.counts[kind.ordinal()];
+    }
+
+    public VarKind kindOf(int id){
+        VarKind kind = subroutineScope.kindOf(id);
+        return kind != VarKind.NONE ? kind : classScope.kindOf(id);
+    }
+
+    public String typeOf(int id){
+        return subroutineScope.kindOf(id) != VarKind.NONE ?
+            subroutineScope.types[id] : classScope.types[id];
+    }
+
+    public int indexOf(int id){
+        return subroutineScope.kindOf(id) != VarKind.NONE ?
+            subroutineScope.indexes[id] : classScope.indexes[id];
+    }
+
+    private static class Scope {
+
+        private static final VarKind[] varKinds = VarKind.values();
+
+        // VarKind ordinal per symbol id; NONE (0) when undefined
+        private byte[] kinds = new byte[64];
+        private String[] types = new String[64];
+        private int[] indexes = new int[64];
+        private int[] counts = new int[VarKind.values().length];
+
+        // Ids defined in this scope, so clearing touches only those
+        private int[] defined = new int[16];
+        private int definedCount;
+
+        VarKind kindOf(int id){
+            return id < kinds.length ? varKinds[kinds[id]] : VarKind.NONE;
+        }
+
+        void define(int id, String type, VarKind kind){
+            if (id >= kinds.length){
+                int capacity = Math.max(id + 1, kinds.length * 2);
+                kinds = Arrays.copyOf(kinds, capacity);
+                types = Arrays.copyOf(types, capacity);
+                indexes = Arrays.copyOf(indexes, capacity);
+            }
+            kinds[id] = (byte) kind.ordinal();
+            types[id] = type;
+            indexes[id] = counts[kind.ordinal()]++;
+
+            if (definedCount == defined.length){
+                defined = Arrays.copyOf(defined, definedCount * 2);
+            }
+            defined[definedCount++] = id;
+        }
+
+        void clear(){
+            for (int i = 0; i < definedCount; i++){
+                kinds[defined[i]] = 0;
+                types[defined[i]] = null;
+            }
+            definedCount = 0;
+            Arrays.fill(counts, 0);
+        }
+    }
+}
+
+enum VarKind {
+    NONE, STATIC, FIELD, ARG, VAR;
+
+    public Segment getSegment(){
+        switch (this){
+            case STATIC:
+                return Segment.STATIC;
+            case FIELD:
+                return Segment.THIS;
+            case ARG:
+                return Segment.ARGUMENT;
+            case VAR:
+                return Segment.LOCAL;
+            default:
+                throw new RuntimeException("No segment for " + this);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The parse tree of one class, built by CompilationEngine as a
+// ParseListener. Nodes live in parallel int arrays, numbered in document
+// order: a node's children follow it directly and its subtree ends at
+// end[node]. Terminals point into the tree's own TokenBuffer.
+//
+// Typed views (ClassNode, LetNode, TermNode...) are created on demand by
+// getNode and hold nothing but the tree and a node id.
+public class SyntaxTree implements ParseListener {
+
+    private static final NonTerminal[] nonTerminals = NonTerminal.values();
+    // kinds[] value for terminal nodes
+    private static final int TERMINAL = -1;
+    // kinds[] value for a restart after an error, with the depth it kept
+    // as its token index. Only the tree of a class with errors has them;
+    // it ends every node the restart dropped.
+    private static final int RESTART = -2;
+    // ends[] value of a non-terminal not ended yet
+    private static final int OPEN = Integer.MAX_VALUE;
+
+    private int[] kinds = new int[256];
+    private int[] tokenIndexes = new int[256];
+    private int[] parents = new int[256];
+    private int[] ends = new int[256];
+    private int count;
+
+    private TokenBuffer tokens;
+
+    // Nodes still being built, innermost last
+    private int[] open = new int[32];
+    private int depth;
+
+    // Empties the tree but keeps its arrays, so one tree can be reused for
+    // every class a thread compiles
+    public void clear(){
+        count = 0;
+        depth = 0;
+        tokens = null;
+    }
+
+    public void startNonTerminal(NonTerminal nonTerminal){
+        int node = addNode(nonTerminal.ordinal(), -1);
+        ends[node] = OPEN;
+        if (depth == open.length){
+            open = Arrays.copyOf(open, depth * 2);
+        }
+        open[depth++] = node;
+    }
+
+    public void endNonTerminal(NonTerminal nonTerminal){
+        int node = open[--depth];
+        if (kinds[node] != nonTerminal.ordinal()){
+            throw new IllegalStateException(
+                "Unbalanced " + nonTerminal + " in syntax tree"
+            );
+        }
+        ends[node] = count;
+    }
+
+    public void terminal(TokenBuffer buffer, int index){
+        if (tokens == null){
+            tokens = new TokenBuffer(
+                buffer.getSource(), buffer.getSymbolPool(), 256, true
+            );
+        }
+        int node = addNode(TERMINAL, tokens.add(buffer, index));
+        ends[node] = node + 1;
+    }
+
+    // Kept in the tree, so accept passes it on exactly where it happened
+    public boolean restart(int depth){
+        int node = addNode(RESTART, depth);
+        ends[node] = node + 1;
+        while (this.depth > depth){
+            ends[open[--this.depth]] = node + 1;
+        }
+        return true;
+    }
+
+    private int addNode(int kind, int tokenIndex){
+        if (count == kinds.length){
+            int capacity = count * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            tokenIndexes = Arrays.copyOf(tokenIndexes, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        kinds[count] = kind;
+        tokenIndexes[count] = tokenIndex;
+        parents[count] = depth > 0 ? open[depth - 1] : -1;
+        return count++;
+    }
+
+    public int size(){
+        return count;
+    }
+
+    public TokenBuffer getTokenBuffer(){
+        return tokens;
+    }
+
+    public ClassNode getRoot(){
+        return (ClassNode) getNode(0);
+    }
+
+    public Node getNode(int node){
+        if (kinds[node] == TERMINAL){
+            return new TerminalNode(this, node);
+        }
+        switch (nonTerminals[kinds[node]]){
+            case CLASS:
+                return new ClassNode(this, node);
+            case subroutineDec:
+                return new SubroutineNode(this, node);
+            case letStatement:
+                return new LetNode(this, node);
+            case ifStatement:
+                return new IfNode(this, node);
+            case whileStatement:
+                return new WhileNode(this, node);
+            case doStatement:
+                return new DoNode(this, node);
+            case returnStatement:
+                return new ReturnNode(this, node);
+            case expression:
+                return new ExpressionNode(this, node);
+            case term:
+                return new TermNode(this, node);
+            default:
+                return new Node(this, node);
+        }
+    }
+
+    // Null for terminals
+    public NonTerminal getKind(int node){
+        return kinds[node] < 0 ? null : nonTerminals[kinds[node]];
+    }
+
+    public boolean isTerminal(int node){
+        return kinds[node] == TERMINAL;
+    }
+
+    public int getTokenIndex(int node){
+        return tokenIndexes[node];
+    }
+
+    // Source offset of the node's first token, or -1 if it has none or
+    // the tokens carry no positions; see LineTable for line and column
+    public int getOffset(int node){
+        for (int i = node; i < ends[node]; i++){
+            if (kinds[i] == TERMINAL){
+                return tokens.getOffset(tokenIndexes[i]);
+            }
+        }
+        return -1;
+    }
+
+    public int getParent(int node){
+        return parents[node];
+    }
+
+    public int getFirstChild(int node){
+        return node + 1 < ends[node] ? node + 1 : -1;
+    }
+
+    public int getNextSibling(int node){
+        int next = ends[node];
+        return next < count && parents[next] == parents[node] ? next : -1;
+    }
+
+    // Replays the tree, in document order, to any ParseListener; an
+    // XmlWriter turns it back into the XML output. Walks the arrays with
+    // an explicit stack, so depth costs no Java stack.
+    public void accept(ParseListener visitor){
+        int[] stack = new int[Math.max(depth, 16)];
+        int top = 0;
+        for (int node = 0; node < count; node++){
+            while (top > 0 && ends[stack[top - 1]] <= node){
+                int closed = stack[--top];
+                visitor.endNonTerminal(nonTerminals[kinds[closed]]);
+            }
+            if (kinds[node] == TERMINAL){
+                visitor.terminal(tokens, tokenIndexes[node]);
+                continue;
+            }
+            if (kinds[node] == RESTART){
+                // The nodes it dropped never get an end
+                top = tokenIndexes[node];
+                visitor.restart(top);
+                continue;
+            }
+            visitor.startNonTerminal(nonTerminals[kinds[node]]);
+            if (top == stack.length){
+                stack = Arrays.copyOf(stack, top * 2);
+            }
+            stack[top++] = node;
+        }
+        // Nodes never ended, e.g. at an unexpected end of file, get no
+        // end either
+        while (top > 0 && ends[stack[top - 1]] != OPEN){
+            visitor.endNonTerminal(nonTerminals[kinds[stack[--top]]]);
+        }
+    }
+}
+
+class Node {
+
+    protected SyntaxTree tree;
+    protected int id;
+
+    Node(SyntaxTree tree, int id){
+        this.tree = tree;
+        this.id = id;
+    }
+
+    public int getId(){
+        return id;
+    }
+
+    // Null for terminals
+    public NonTerminal getKind(){
+        return tree.getKind(id);
+    }
+
+    public List<Node> getChildren(){
+        List<Node> children = new ArrayList<Node>();
+        for (int child = tree.getFirstChild(id);
+                child >= 0; child = tree.getNextSibling(child)){
+            children.add(tree.getNode(child));
+        }
+        return children;
+    }
+
+    // The index-th child, or null
+    public Node getChild(int index){
+        int child = tree.getFirstChild(id);
+        for (int i = 0; i < index && child >= 0; i++){
+            child = tree.getNextSibling(child);
+        }
+        return child >= 0 ? tree.getNode(child) : null;
+    }
+
+    public List<Node> getChildren(NonTerminal kind){
+        List<Node> children = new ArrayList<Node>();
+        for (int child = tree.getFirstChild(id);
+                child >= 0; child = tree.getNextSibling(child)){
+            if (tree.getKind(child) == kind){
+                children.add(tree.getNode(child));
+            }
+        }
+        return children;
+    }
+
+    // The first child of the given kind, or null
+    public Node getChild(NonTerminal kind){
+        for (int child = tree.getFirstChild(id);
+                child >= 0; child = tree.getNextSibling(child)){
+            if (tree.getKind(child) == kind){
+                return tree.getNode(child);
+            }
+        }
+        return null;
+    }
+
+    // Text of the index-th child, which must be a terminal
+    protected String getChildText(int index){
+        return ((TerminalNode) getChild(index)).getText();
+    }
+}
+
+class TerminalNode extends Node {
+
+    TerminalNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public TokenType getTokenType(){
+        return tree.getTokenBuffer().getTokenType(tree.getTokenIndex(id));
+    }
+
+    public KeywordType getKeyword(){
+        return tree.getTokenBuffer().getKeyword(tree.getTokenIndex(id));
+    }
+
+    public char getSymbol(){
+        return tree.getTokenBuffer().getSymbol(tree.getTokenIndex(id));
+    }
+
+    public int getIntVal(){
+        return tree.getTokenBuffer().getIntVal(tree.getTokenIndex(id));
+    }
+
+    // The token as it reads in the source (string constants unquoted)
+    public String getText(){
+        TokenBuffer tokens = tree.getTokenBuffer();
+        int index = tree.getTokenIndex(id);
+        switch (tokens.getTokenType(index)){
+            case KEYWORD:
+                return tokens.getKeyword(index).toString();
+            case SYMBOL:
+                return String.valueOf(tokens.getSymbol(index));
+            case INT_CONST:
+                return String.valueOf(tokens.getIntVal(index));
+            default:
+                return tokens.getText(index);
+        }
+    }
+
+    public Token getToken(){
+        return tree.getTokenBuffer().getToken(tree.getTokenIndex(id));
+    }
+}
+
+// class className { classVarDec* subroutineDec* }
+class ClassNode extends Node {
+
+    ClassNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public String getName(){
+        return getChildText(1);
+    }
+
+    public List<Node> getClassVarDecs(){
+        return getChildren(NonTerminal.classVarDec);
+    }
+
+    public List<Node> getSubroutines(){
+        return getChildren(NonTerminal.subroutineDec);
+    }
+}
+
+// constructor|function|method type name ( parameterList ) subroutineBody
+class SubroutineNode extends Node {
+
+    SubroutineNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public KeywordType getSubroutineKind(){
+        return ((TerminalNode) getChild(0)).getKeyword();
+    }
+
+    public String getReturnType(){
+        return getChildText(1);
+    }
+
+    public String getName(){
+        return getChildText(2);
+    }
+
+    public Node getParameterList(){
+        return getChild(NonTerminal.parameterList);
+    }
+
+    public Node getBody(){
+        return getChild(NonTerminal.subroutineBody);
+    }
+}
+
+// let varName ([ expression ])? = expression ;
+class LetNode extends Node {
+
+    LetNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public String getVarName(){
+        return getChildText(1);
+    }
+
+    // The array index, or null for a plain variable
+    public ExpressionNode getIndex(){
+        List<Node> expressions = getChildren(NonTerminal.expression);
+        return expressions.size() > 1 ? (ExpressionNode) expressions.get(0) : null;
+    }
+
+    public ExpressionNode getValue(){
+        List<Node> expressions = getChildren(NonTerminal.expression);
+        return (ExpressionNode) expressions.get(expressions.size() - 1);
+    }
+}
+
+// if ( expression ) { statements } (else { statements })?
+class IfNode extends Node {
+
+    IfNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public ExpressionNode getCondition(){
+        return (ExpressionNode) getChild(NonTerminal.expression);
+    }
+
+    public Node getThen(){
+        return getChildren(NonTerminal.statements).get(0);
+    }
+
+    // Null without an else branch
+    public Node getElse(){
+        List<Node> branches = getChildren(NonTerminal.statements);
+        return branches.size() > 1 ? branches.get(1) : null;
+    }
+}
+
+// while ( expression ) { statements }
+class WhileNode extends Node {
+
+    WhileNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public ExpressionNode getCondition(){
+        return (ExpressionNode) getChild(NonTerminal.expression);
+    }
+
+    public Node getBody(){
+        return getChild(NonTerminal.statements);
+    }
+}
+
+// do subroutineCall ;
+class DoNode extends Node {
+
+    DoNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public Node getArguments(){
+        return getChild(NonTerminal.expressionList);
+    }
+}
+
+// return expression? ;
+class ReturnNode extends Node {
+
+    ReturnNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    // Null for a bare return
+    public ExpressionNode getValue(){
+        return (ExpressionNode) getChild(NonTerminal.expression);
+    }
+}
+
+// term (op term)*
+class ExpressionNode extends Node {
+
+    ExpressionNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public List<Node> getTerms(){
+        return getChildren(NonTerminal.term);
+    }
+
+    // The operators between the terms, in order
+    public List<Character> getOperators(){
+        List<Character> operators = new ArrayList<Character>();
+        for (Node child : getChildren()){
+            if (child instanceof TerminalNode){
+                operators.add(((TerminalNode) child).getSymbol());
+            }
+        }
+        return operators;
+    }
+}
+
+// A constant, variable, array entry, call, ( expression ) or unary op term
+class TermNode extends Node {
+
+    TermNode(SyntaxTree tree, int id){
+        super(tree, id);
+    }
+
+    public TerminalNode getFirst(){
+        return (TerminalNode) getChild(0);
+    }
+
+    public boolean isUnary(){
+        return getChild(NonTerminal.term) != null;
+    }
+
+    public boolean isCall(){
+        return getChild(NonTerminal.expressionList) != null;
+    }
+}
@@ -1,24 +1,43 @@
-import java.util.Set;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Token {
 
-    public static Set<Character> possibleSymbols = new HashSet<Character>();
+    private static final char[] symbols = {
+        '{', '}',
+        '(', ')',
+        '[', ']',
+        ',', '.', ';',
+        '+','-', '*', '/',
+        '&', '|',
+        '<', '>', '=', '~'
+    };
+
+    private static Map<String, KeywordType> keywords =
+        new HashMap<String, KeywordType>();
+
+    // Keyword, symbol and non-terminal tokens carry no per-occurrence data,
+    // so one shared instance of each is handed out instead of a new Token
+    private static final Token[] keywordTokens =
+        new Token[KeywordType.values().length];
+    // Indexed by the symbol character; null for anything else
+    private static final Token[] symbolTokens = new Token[128];
+    private static final Token[][] nonTerminalTokens =
+        new Token[NonTerminal.values().length][2];
     static {
-        possibleSymbols.addAll(
-            Arrays.asList(
-                new Character[]{
-                    '{', '}',
-                    '(', ')',
-                    '[', ']',
-                    ',', '.', ';',
-                    '+','-', '*', '/',
-                    '&', '|',
-                    '<', '>', '=', '~'
-                }
-            )
-        );
+        for (KeywordType keyword : KeywordType.values()){
+            keywords.put(keyword.toString(), keyword);
+            keywordTokens[keyword.ordinal()] = new Token(keyword);
+        }
+        for (char symbol : symbols){
+            symbolTokens[symbol] = new Token(symbol);
+        }
+        for (NonTerminal nonTerminal : NonTerminal.values()){
+            nonTerminalTokens[nonTerminal.ordinal()][0] =
+                new Token(nonTerminal, false);
+            nonTerminalTokens[nonTerminal.ordinal()][1] =
+                new Token(nonTerminal, true);
+        }
     }
 
     private TokenType tokenType;
@@ -34,84 +53,16 @@ public class Token {
     private boolean ending;
 
     public Token(String keyword){
-        // The keyword given must be lowercase, but the names of the enum
-        // is UPPERCASE, and I didn't want to manually change all the cases to
-        // lowercase lol
-        String comparableKeyword;
-        if (!keyword.equals(keyword.toLowerCase())){
-            comparableKeyword = "unknown";
-        } else {
-            comparableKeyword = keyword.toUpperCase();
+        this.keyword = keywords.get(keyword);
+        if (this.keyword == null){
+            throw new RuntimeException("Unknown Keyword " + keyword);
         }
+        this.tokenType = TokenType.KEYWORD;
+    }
 
-        switch (comparableKeyword) {
-            case "CLASS":
-                this.keyword = KeywordType.CLASS;
-                break;
-            case "METHOD":
-                this.keyword = KeywordType.METHOD;
-                break;
-            case "FUNCTION":
-                this.keyword = KeywordType.FUNCTION;
-                break;
-            case "CONSTRUCTOR":
-                this.keyword = KeywordType.CONSTRUCTOR;
-                break;
-            case "INT":
-                this.keyword = KeywordType.INT;
-                break;
-            case "BOOLEAN":
-                this.keyword = KeywordType.BOOLEAN;
-                break;
-            case "CHAR":
-                this.keyword = KeywordType.CHAR;
-                break;
-            case "VOID":
-                this.keyword = KeywordType.VOID;
-                break;
-            case "VAR":
-                this.keyword = KeywordType.VAR;
-                break;
-            case "STATIC":
-                this.keyword = KeywordType.STATIC;
-                break;
-            case "FIELD":
-                this.keyword = KeywordType.FIELD;
-                break;
-            case "LET":
-                this.keyword = KeywordType.LET;
-                break;
-            case "DO":
-                this.keyword = KeywordType.DO;
-                break;
-            case "IF":
-                this.keyword = KeywordType.IF;
-                break;
-            case "ELSE":
-                this.keyword = KeywordType.ELSE;
-                break;
-            case "WHILE":
-                this.keyword = KeywordType.WHILE;
-                break;
-            case "RETURN":
-                this.keyword = KeywordType.RETURN;
-                break;
-            case "TRUE":
-                this.keyword = KeywordType.TRUE;
-                break;
-            case "FALSE":
-                this.keyword = KeywordType.FALSE;
-                break;
-            case "NULL":
-                this.keyword = KeywordType.NULL;
-                break;
-            case "THIS":
-                this.keyword = KeywordType.THIS;
-                break;
-            default:
-                throw new RuntimeException("Unknown Keyword " + keyword);
-        }
+    public Token(KeywordType keyword){
         this.tokenType = TokenType.KEYWORD;
+        this.keyword = keyword;
     }
 
     public Token(char symbol){
@@ -123,9 +74,7 @@ public class Token {
 
         if(identOrStr){
             this.tokenType = TokenType.IDENTIFIER;
-            if(
-                Character.isDigit(inpString.charAt(0)) |
-                    !inpString.matches("[a-zA-Z0-9_]+")){
+            if(!isIdentifier(inpString)){
                 throw new RuntimeException(
                     "Invalid Identifier " + inpString
                 );
@@ -155,6 +104,42 @@ public class Token {
         this.isCompiled = true;
     }
 
+    public static Token keyword(KeywordType keyword){
+        return keywordTokens[keyword.ordinal()];
+    }
+
+    public static Token symbol(char symbol){
+        if (!isSymbol(symbol)){
+            throw new RuntimeException("Unknown Symbol " + symbol);
+        }
+        return symbolTokens[symbol];
+    }
+
+    public static Token nonTerminal(NonTerminal nonTerminal, boolean ending){
+        return nonTerminalTokens[nonTerminal.ordinal()][ending ? 1 : 0];
+    }
+
+    public static boolean isSymbol(char c){
+        return c < 128 && symbolTokens[c] != null;
+    }
+
+    // [a-zA-Z_][a-zA-Z0-9_]*, checked without a regex
+    public static boolean isIdentifier(String name){
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))){
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++){
+            char c = name.charAt(i);
+            if (
+                !(c >= 'a' & c <= 'z') & !(c >= 'A' & c <= 'Z') &
+                !(c >= '0' & c <= '9') & c != '_'
+                ){
+                    return false;
+            }
+        }
+        return true;
+    }
+
     public TokenType getTokenType(){
         return tokenType;
     }
@@ -241,8 +226,10 @@ enum KeywordType {
     WHILE, RETURN, TRUE, FALSE,
     NULL, THIS;
 
+    private final String text = this.name().toLowerCase();
+
     @Override
     public String toString(){
-        return this.name().toLowerCase();
+        return text;
     }
 }
\ No newline at end of file
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+// Tokens stored as parallel int arrays instead of one object each.
+// Identifiers and string constants are stored as their SymbolPool id, plus
+// an offset and length into the source for a zero-copy view of the text.
+//
+// The buffer is either a ring of fixed capacity (streaming, only the most
+// recent tokens are kept) or grows to hold every token of the file.
+public class TokenBuffer {
+
+    private static final TokenType[] tokenTypes = TokenType.values();
+    private static final KeywordType[] keywordTypes = KeywordType.values();
+
+    private CharSequence source;
+    private SymbolPool pool;
+    private boolean retainAll;
+    private int capacity;
+
+    private int[] kinds;
+    // Keyword ordinal, symbol char, integer value or symbol id, depending
+    // on the kind
+    private int[] values;
+    // -1 for tokens that were not lexed from source
+    private int[] offsets;
+    private int[] lengths;
+
+    private int count;
+
+    public TokenBuffer(
+            CharSequence source, SymbolPool pool, int capacity, boolean retainAll){
+        this.source = source;
+        this.pool = pool;
+        this.retainAll = retainAll;
+        this.capacity = capacity;
+        this.kinds = new int[capacity];
+        this.values = new int[capacity];
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+    }
+
+    // Number of tokens added so far, including any the ring has dropped
+    public int size(){
+        return count;
+    }
+
+    public boolean isRetained(int index){
+        return index >= 0 & index < count &
+            (retainAll | index >= count - capacity);
+    }
+
+    public int add(TokenType kind, int value, int offset, int length){
+        if (retainAll & count == capacity){
+            grow();
+        }
+        int slot = retainAll ? count : count % capacity;
+        kinds[slot] = kind.ordinal();
+        values[slot] = value;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        return count++;
+    }
+
+    // Copies a token out of another buffer over the same source and pool
+    public int add(TokenBuffer other, int index){
+        int slot = other.slot(index);
+        return add(
+            tokenTypes[other.kinds[slot]], other.values[slot],
+            other.offsets[slot], other.lengths[slot]
+        );
+    }
+
+    // Adds a token that has no position in the source
+    public int add(Token token){
+        return add(token, -1, 0);
+    }
+
+    // Adds a token found at offset in the source, length chars long
+    public int add(Token token, int offset, int length){
+        int value = 0;
+        switch (token.getTokenType()){
+            case KEYWORD:
+                value = token.getKeyword().ordinal();
+                break;
+            case SYMBOL:
+                value = token.getSymbol();
+                break;
+            case INT_CONST:
+                value = token.getIntVal();
+                break;
+            case IDENTIFIER:
+                value = pool.intern(token.getIdentifier());
+                break;
+            case STRING_CONST:
+                value = pool.intern(token.getStringVal());
+                break;
+        }
+        return add(token.getTokenType(), value, offset, length);
+    }
+
+    public TokenType getTokenType(int index){
+        return tokenTypes[kinds[slot(index)]];
+    }
+
+    public KeywordType getKeyword(int index){
+        return keywordTypes[values[slot(index)]];
+    }
+
+    public char getSymbol(int index){
+        return (char) values[slot(index)];
+    }
+
+    public int getIntVal(int index){
+        return values[slot(index)];
+    }
+
+    // SymbolPool id of an identifier or string constant
+    public int getId(int index){
+        return values[slot(index)];
+    }
+
+    public SymbolPool getSymbolPool(){
+        return pool;
+    }
+
+    public CharSequence getSource(){
+        return source;
+    }
+
+    public int getOffset(int index){
+        return offsets[slot(index)];
+    }
+
+    public int getLength(int index){
+        return lengths[slot(index)];
+    }
+
+    public boolean isKeyword(int index, KeywordType keyword){
+        int slot = slot(index);
+        return kinds[slot] == TokenType.KEYWORD.ordinal() &
+            values[slot] == keyword.ordinal();
+    }
+
+    public boolean isSymbol(int index, char symbol){
+        int slot = slot(index);
+        return kinds[slot] == TokenType.SYMBOL.ordinal() &
+            values[slot] == symbol;
+    }
+
+    // The identifier or string constant as a slice of the source
+    public CharSequence getLexeme(int index){
+        int slot = slot(index);
+        if (offsets[slot] < 0){
+            return pool.getName(values[slot]);
+        }
+        return source.subSequence(offsets[slot], offsets[slot] + lengths[slot]);
+    }
+
+    // The pooled String for an identifier or string constant
+    public String getText(int index){
+        return pool.getName(values[slot(index)]);
+    }
+
+    // Object view of one token, for code that still works on Tokens
+    public Token getToken(int index){
+        switch (getTokenType(index)){
+            case KEYWORD:
+                return Token.keyword(getKeyword(index));
+            case SYMBOL:
+                return Token.symbol(getSymbol(index));
+            case INT_CONST:
+                return new Token(getIntVal(index));
+            case IDENTIFIER:
+                return new Token(getText(index), true);
+            default:
+                return new Token(getText(index), false);
+        }
+    }
+
+    private int slot(int index){
+        if (!isRetained(index)){
+            throw new IllegalStateException(
+                "Token " + index + " is outside the token buffer"
+            );
+        }
+        return retainAll ? index : index % capacity;
+    }
+
+    private void grow(){
+        capacity *= 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        values = Arrays.copyOf(values, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+    }
+}
@@ -0,0 +1,25 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects the parse tree as the flat list of Tokens that
+// CompilationEngine.getTokens has always returned.
+public class TokenCollector implements ParseListener {
+
+    private List<Token> tokens = new ArrayList<Token>();
+
+    public void startNonTerminal(NonTerminal nonTerminal){
+        tokens.add(Token.nonTerminal(nonTerminal, false));
+    }
+
+    public void endNonTerminal(NonTerminal nonTerminal){
+        tokens.add(Token.nonTerminal(nonTerminal, true));
+    }
+
+    public void terminal(TokenBuffer buffer, int index){
+        tokens.add(buffer.getToken(index));
+    }
+
+    public List<Token> getTokens(){
+        return tokens;
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The names one compilation accepts as types: the primitive types, the
+// OS classes, the class being compiled and whatever else it is seeded
+// with. Each CompilationEngine gets its own, so nothing one compilation
+// learns leaks into another and engines on different threads share no
+// mutable state.
+public class TypeRegistry {
+
+    private static final String[] builtInTypes = {
+        "int", "char", "boolean", "void",
+        "Math", "String", "Array", "Output",
+        "Screen", "Keyboard", "Memory", "Sys"
+    };
+
+    private Set<String> names = new HashSet<String>();
+    // The other classes of the batch; shared, and never changed
+    private Set<String> classNames = Collections.emptySet();
+    // Those of classNames this compilation accepted, see getUsedClassNames.
+    // Workers of --parallel-subroutines add to it at once.
+    private Set<String> usedClassNames = ConcurrentHashMap.newKeySet();
+
+    public TypeRegistry(){
+        for (String name : builtInTypes){
+            names.add(name);
+        }
+    }
+
+    // Also accepts classNames, e.g. the other classes of a batch
+    public TypeRegistry(Set<String> classNames){
+        this();
+        this.classNames = classNames;
+    }
+
+    public void add(String name){
+        names.add(name);
+    }
+
+    public boolean contains(String name){
+        if (names.contains(name)){
+            return true;
+        }
+        if (classNames.contains(name)){
+            usedClassNames.add(name);
+            return true;
+        }
+        return false;
+    }
+
+    // The names the compilation could only accept because they were among
+    // the classes it was seeded with, i.e. what besides its own source its
+    // output depends on
+    public Set<String> getUsedClassNames(){
+        return usedClassNames;
+    }
+}
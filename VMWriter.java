@@ -0,0 +1,98 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+// Writes Hack VM commands, one per line.
+public class VMWriter implements AutoCloseable {
+
+    private PrintWriter writer;
+
+    public VMWriter(String outputPath) throws FileNotFoundException {
+        this.writer = new PrintWriter(outputPath);
+    }
+
+    public VMWriter(Writer writer){
+        this.writer = new PrintWriter(writer);
+    }
+
+    public void writePush(Segment segment, int index){
+        writer.print("push ");
+        writer.print(segment);
+        writer.print(' ');
+        writer.println(index);
+    }
+
+    public void writePop(Segment segment, int index){
+        writer.print("pop ");
+        writer.print(segment);
+        writer.print(' ');
+        writer.println(index);
+    }
+
+    public void writeArithmetic(Command command){
+        writer.println(command);
+    }
+
+    public void writeLabel(String label){
+        writer.print("label ");
+        writer.println(label);
+    }
+
+    public void writeGoto(String label){
+        writer.print("goto ");
+        writer.println(label);
+    }
+
+    public void writeIf(String label){
+        writer.print("if-goto ");
+        writer.println(label);
+    }
+
+    public void writeCall(String name, int nArgs){
+        writer.print("call ");
+        writer.print(name);
+        writer.print(' ');
+        writer.println(nArgs);
+    }
+
+    public void writeFunction(String name, int nLocals){
+        writer.print("function ");
+        writer.print(name);
+        writer.print(' ');
+        writer.println(nLocals);
+    }
+
+    public void writeReturn(){
+        writer.println("return");
+    }
+
+    public void flush(){
+        writer.flush();
+    }
+
+    public void close(){
+        writer.close();
+    }
+}
+
+enum Segment {
+    CONSTANT, ARGUMENT, LOCAL, STATIC, THIS, THAT, POINTER, TEMP;
+
+    private final String text = this.name().toLowerCase();
+
+    @Override
+    public String toString(){
+        return text;
+    }
+}
+
+enum Command {
+    ADD, SUB, NEG, EQ, GT, LT, AND, OR, NOT;
+
+    private final String text = this.name().toLowerCase();
+
+    @Override
+    public String toString(){
+        return text;
+    }
+}
@@ -0,0 +1,72 @@
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+// Writes the parse tree as XML, one element per line, as it is parsed.
+// The output matches writing out CompilationEngine.getTokens line by line.
+public class XmlWriter implements ParseListener, AutoCloseable {
+
+    private PrintWriter writer;
+
+    public XmlWriter(String outputPath) throws FileNotFoundException {
+        this.writer = new PrintWriter(outputPath);
+    }
+
+    public XmlWriter(Writer writer){
+        this.writer = new PrintWriter(writer);
+    }
+
+    public void startNonTerminal(NonTerminal nonTerminal){
+        writer.print('<');
+        writer.print(nonTerminal);
+        writer.println('>');
+    }
+
+    public void endNonTerminal(NonTerminal nonTerminal){
+        writer.print("</");
+        writer.print(nonTerminal);
+        writer.println('>');
+    }
+
+    // Written piece by piece straight from the buffer, without building a
+    // Token or an intermediate String
+    public void terminal(TokenBuffer tokens, int index){
+        switch (tokens.getTokenType(index)){
+            case KEYWORD:
+                element("keyword", tokens.getKeyword(index).toString());
+                break;
+            case SYMBOL:
+                element("symbol", Token.translateXML(tokens.getSymbol(index)));
+                break;
+            case IDENTIFIER:
+                element("identifier", tokens.getText(index));
+                break;
+            case INT_CONST:
+                writer.print("<integerConstant> ");
+                writer.print(tokens.getIntVal(index));
+                writer.println(" </integerConstant>");
+                break;
+            case STRING_CONST:
+                element("stringConstant", tokens.getText(index));
+                break;
+        }
+    }
+
+    private void element(String name, String value){
+        writer.print('<');
+        writer.print(name);
+        writer.print("> ");
+        writer.print(value);
+        writer.print(" </");
+        writer.print(name);
+        writer.println('>');
+    }
+
+    public void flush(){
+        writer.flush();
+    }
+
+    public void close(){
+        writer.close();
+    }
+}
@@ -0,0 +1,102 @@
+package jackbench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The phases of the root project's Benchmark harness, measured by JMH. One
+// operation is one pass of a phase over a whole corpus:
+//
+//   lex    JackTokenizer.readFile
+//   parse  CompilationEngine construction, from pre-lexed tokens
+//   write  JackAnalyzer.writeToFile, from a parsed engine
+//   vm     source to VM code, the whole default pipeline
+//
+// Tokens and bytes per second are reported as the tokens and bytes
+// counters; allocation comes from the GC profiler the jmh task adds.
+//
+// The compiler's classes are in the default package, which code in a
+// package cannot name (and JMH needs one), so the corpus and the phase
+// come from Benchmark's bridge methods, found by method handle once in
+// setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+    @Param({"lex", "parse", "write", "vm"})
+    public String phase;
+
+    @Param({
+        "Square", "ExpressionLessSquare", "ArrayTest", "11",
+        "synthetic-balanced", "synthetic-wide", "synthetic-deep",
+        "synthetic-chains", "synthetic-strings", "synthetic-comments"
+    })
+    public String corpus;
+
+    private LongSupplier operation;
+    private long tokens;
+    private long bytes;
+
+    // Per-iteration totals, which JMH divides by the time taken
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+
+        public long tokens;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            tokens = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Throwable {
+        Class<?> harness = Class.forName("Benchmark");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        MethodHandle loadCorpus = lookup.findStatic(harness, "loadCorpus",
+            MethodType.methodType(Object.class, String.class));
+        MethodHandle operation = lookup.findStatic(harness, "operation",
+            MethodType.methodType(LongSupplier.class, String.class, Object.class));
+        MethodHandle corpusSize = lookup.findStatic(harness, "corpusSize",
+            MethodType.methodType(long[].class, Object.class));
+
+        Object loaded = loadCorpus.invoke(corpus);
+        this.operation = (LongSupplier) operation.invoke(phase, loaded);
+        long[] size = (long[]) corpusSize.invoke(loaded);
+        this.tokens = size[0];
+        this.bytes = size[1];
+    }
+
+    // The pass returns a checksum of what it produced; sinking it keeps
+    // the JIT from dropping the work
+    @Benchmark
+    public void pass(Throughput throughput, Blackhole blackhole){
+        blackhole.consume(operation.getAsLong());
+        throughput.tokens += tokens;
+        throughput.bytes += bytes;
+    }
+}